@@ -0,0 +1,121 @@
+package com.intuit.cg.backendtechassessment.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Global limit on the number of requests being worked on at the same time. The limit is
+ * not fixed - it is derived from latency. Two moving averages of request latency are
+ * kept: a short one that follows the current load and a long one that remembers what
+ * "normal" looks like. While the short average stays close to the long one the limit
+ * creeps upwards, and as soon as requests start queuing up (short average rising) the
+ * limit shrinks, so excess requests are shed before latency collapses.
+ *
+ * Only one thread at a time updates the estimate. Threads that find the update lock
+ * taken just skip their sample, which keeps release() wait free.
+ */
+public class AdaptiveConcurrencyLimiter {
+	private static final double SHORT_WINDOW_ALPHA = 0.1;
+	private static final double LONG_WINDOW_ALPHA = 0.002;
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;
+	private static final int QUEUE_ALLOWANCE = 4;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder rejections = new LongAdder();
+	private final ReentrantLock updateLock = new ReentrantLock();
+	private final int minLimit;
+	private final int maxLimit;
+
+	private volatile int limit;
+	// guarded by updateLock
+	private double estimatedLimit;
+	private double shortLatency;
+	private double longLatency;
+
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+		this.estimatedLimit = initialLimit;
+	}
+
+	/**
+	 * Reserves a slot for one request. Returns false if the limit has been reached, in
+	 * which case release() must not be called.
+	 */
+	public boolean tryAcquire() {
+		if (inFlight.incrementAndGet() > limit) {
+			inFlight.decrementAndGet();
+			rejections.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Frees the slot reserved by tryAcquire() for a request that was never worked on.
+	 * Nothing is learned about latency from it.
+	 */
+	public void cancel() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Frees the slot reserved by tryAcquire() and feeds the latency of the request
+	 * (measured from startNanos, a System.nanoTime() value) back into the limit.
+	 */
+	public void release(long startNanos) {
+		long latency = System.nanoTime() - startNanos;
+		int inFlightAtCompletion = inFlight.getAndDecrement();
+		if (!updateLock.tryLock()) {
+			return;
+		}
+		try {
+			if (shortLatency == 0.0) {
+				shortLatency = latency;
+				longLatency = latency;
+			} else {
+				shortLatency += (latency - shortLatency) * SHORT_WINDOW_ALPHA;
+				longLatency += (latency - longLatency) * LONG_WINDOW_ALPHA;
+			}
+			// the long average lags behind a spike - pull it back down once the spike is over
+			if (longLatency > shortLatency * 2.0) {
+				longLatency *= 0.95;
+			}
+			// nothing can be learned about the limit while most of it is unused
+			if (inFlightAtCompletion < estimatedLimit / 2) {
+				return;
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+			double target = estimatedLimit * gradient + QUEUE_ALLOWANCE;
+			estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+					estimatedLimit * (1.0 - SMOOTHING) + target * SMOOTHING));
+			limit = (int)estimatedLimit;
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current concurrency limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the number of requests currently holding a slot
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of requests that have been shed
+	 */
+	public long getRejections() {
+		return rejections.sum();
+	}
+}
@@ -0,0 +1,93 @@
+package com.intuit.cg.backendtechassessment.admission;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import com.intuit.cg.backendtechassessment.dataobjects.AdmissionStats;
+
+/**
+ * Decides whether an incoming bid gets worked on at all. A bid has to get past three
+ * limits: the global adaptive concurrency limit that sheds load when the marketplace
+ * gets slow, the buyer's own rate limit (so one noisy client cannot starve everyone
+ * else), and the project's rate limit (so one hot project cannot either). A bid that is
+ * turned away by a later limit gives back what it took from the earlier ones, so nobody
+ * is charged for load they did not cause.
+ *
+ * Every admitted bid must be followed by a call to release().
+ */
+public class BidAdmissionControl {
+	private static final double BUYER_BIDS_PER_SECOND = 20.0;
+	private static final int BUYER_BURST = 40;
+	private static final double PROJECT_BIDS_PER_SECOND = 200.0;
+	private static final int PROJECT_BURST = 400;
+	private static final int MAX_TRACKED_KEYS = 100000;
+	private static final int INITIAL_CONCURRENCY = 100;
+	private static final int MIN_CONCURRENCY = 10;
+	private static final int MAX_CONCURRENCY = 1000;
+
+	/**
+	 * The outcome of asking to admit a bid
+	 */
+	public enum Decision {
+		ADMITTED,
+		BUYER_RATE_LIMITED,
+		PROJECT_RATE_LIMITED,
+		OVERLOADED
+	}
+
+	private final TokenBucketLimiter buyerLimiter =
+			new TokenBucketLimiter(BUYER_BIDS_PER_SECOND, BUYER_BURST, MAX_TRACKED_KEYS);
+	private final TokenBucketLimiter projectLimiter =
+			new TokenBucketLimiter(PROJECT_BIDS_PER_SECOND, PROJECT_BURST, MAX_TRACKED_KEYS);
+	private final AdaptiveConcurrencyLimiter concurrencyLimiter =
+			new AdaptiveConcurrencyLimiter(INITIAL_CONCURRENCY, MIN_CONCURRENCY, MAX_CONCURRENCY);
+	private final LongAdder admitted = new LongAdder();
+
+	public BidAdmissionControl() {
+	}
+
+	/**
+	 * Checks the limits for a bid from the given buyer on the given project. Both ids must
+	 * belong to a known buyer and project - otherwise a client could dodge its limit by
+	 * making up new ids, and the limiters would track made up ids.
+	 */
+	public Decision tryAdmit(UUID buyerId, UUID projectId) {
+		if (!concurrencyLimiter.tryAcquire()) {
+			return Decision.OVERLOADED;
+		}
+		if (!buyerLimiter.tryAcquire(buyerId)) {
+			concurrencyLimiter.cancel();
+			return Decision.BUYER_RATE_LIMITED;
+		}
+		if (!projectLimiter.tryAcquire(projectId)) {
+			buyerLimiter.refund(buyerId);
+			concurrencyLimiter.cancel();
+			return Decision.PROJECT_RATE_LIMITED;
+		}
+		admitted.increment();
+		return Decision.ADMITTED;
+	}
+
+	/**
+	 * Marks an admitted bid as done. startNanos is the System.nanoTime() value taken when
+	 * work on the bid started.
+	 */
+	public void release(long startNanos) {
+		concurrencyLimiter.release(startNanos);
+	}
+
+	/**
+	 * Returns the current limit state and rejection counts
+	 */
+	public AdmissionStats getStats() {
+		AdmissionStats stats = new AdmissionStats();
+		stats.setAdmitted(admitted.sum());
+		stats.setBuyerRateLimited(buyerLimiter.getRejections());
+		stats.setProjectRateLimited(projectLimiter.getRejections());
+		stats.setOverloaded(concurrencyLimiter.getRejections());
+		stats.setConcurrencyLimit(concurrencyLimiter.getLimit());
+		stats.setInFlight(concurrencyLimiter.getInFlight());
+		stats.setTrackedBuyers(buyerLimiter.getTrackedKeys());
+		stats.setTrackedProjects(projectLimiter.getTrackedKeys());
+		return stats;
+	}
+}
@@ -0,0 +1,132 @@
+package com.intuit.cg.backendtechassessment.admission;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keyed token bucket rate limiter. Each key (a buyerId or a projectId) gets its own
+ * bucket that refills at permitsPerSecond and holds at most burst permits.
+ *
+ * The bucket is stored in the GCRA form - a single long holding the "theoretical arrival
+ * time" of the next permit - so that every key costs one AtomicLong and acquiring a
+ * permit is one map lookup plus one compare-and-set. A bucket whose arrival time is in
+ * the past is full, which means it is indistinguishable from a brand new bucket and can
+ * be dropped whenever the map needs to be trimmed.
+ *
+ * The map holds at most maxTrackedKeys buckets. Full buckets are trimmed once it is 7/8
+ * full, by one thread at a time and at most once per TRIM_INTERVAL_NANOS, so a flood of
+ * new keys never turns every request into a scan. If the map is still full after that,
+ * new keys share a single overflow bucket until trimming frees up room - together they
+ * get the rate of one key.
+ */
+public class TokenBucketLimiter {
+	private static final long TRIM_INTERVAL_NANOS = 1000000000L;	// one second
+
+	private final ConcurrentHashMap<UUID, AtomicLong> buckets = new ConcurrentHashMap<UUID, AtomicLong>(16);
+	private final AtomicLong overflowBucket = new AtomicLong(System.nanoTime());
+	private final LongAdder rejections = new LongAdder();
+	private final ReentrantLock trimLock = new ReentrantLock();
+	private final long emissionIntervalNanos;
+	private final long burstToleranceNanos;
+	private final int maxTrackedKeys;
+	private final int trimThreshold;
+	private volatile long lastTrimNanos = System.nanoTime() - TRIM_INTERVAL_NANOS;
+
+	public TokenBucketLimiter(double permitsPerSecond, int burst, int maxTrackedKeys) {
+		if (permitsPerSecond <= 0.0 || burst < 1) {
+			throw new IllegalArgumentException("Rate limits must allow at least one permit");
+		}
+		this.emissionIntervalNanos = (long)(1000000000L / permitsPerSecond);
+		this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+		this.maxTrackedKeys = maxTrackedKeys;
+		this.trimThreshold = maxTrackedKeys - maxTrackedKeys / 8;
+	}
+
+	/**
+	 * Takes one permit from the bucket for the given key. Returns false if the bucket is
+	 * empty. A null key is never limited.
+	 */
+	public boolean tryAcquire(UUID key) {
+		if (key == null) {
+			return true;
+		}
+		long now = System.nanoTime();
+		AtomicLong arrival = buckets.get(key);
+		if (arrival == null) {
+			arrival = newBucket(key, now);
+		}
+		while (true) {
+			long current = arrival.get();
+			long base = (current - now > 0) ? current : now;
+			if (base - now > burstToleranceNanos) {
+				rejections.increment();
+				return false;
+			}
+			if (arrival.compareAndSet(current, base + emissionIntervalNanos)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives back a permit taken with tryAcquire() for a request that was turned away
+	 * further on, so the key is not charged for it.
+	 */
+	public void refund(UUID key) {
+		if (key == null) {
+			return;
+		}
+		// a key without a bucket of its own was charged to the overflow bucket
+		buckets.getOrDefault(key, overflowBucket).addAndGet(-emissionIntervalNanos);
+	}
+
+	/**
+	 * Returns the number of requests that have been turned away
+	 */
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	/**
+	 * Returns the number of keys that currently have a bucket
+	 */
+	public int getTrackedKeys() {
+		return buckets.size();
+	}
+
+	/**
+	 * Returns the bucket for a key that has none yet: a new one if there is room, the
+	 * overflow bucket otherwise.
+	 */
+	private AtomicLong newBucket(UUID key, long now) {
+		if (buckets.size() >= trimThreshold) {
+			trimIdleBuckets(now);
+			if (buckets.size() >= maxTrackedKeys) {
+				return overflowBucket;
+			}
+		}
+		return buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+	}
+
+	/**
+	 * Drops full buckets, unless another thread is already at it or the last trim was less
+	 * than TRIM_INTERVAL_NANOS ago. A permit taken concurrently with the removal can be
+	 * lost, which only ever lets a caller through early - never rejects one wrongly.
+	 */
+	private void trimIdleBuckets(long now) {
+		if (now - lastTrimNanos < TRIM_INTERVAL_NANOS || !trimLock.tryLock()) {
+			return;
+		}
+		try {
+			if (now - lastTrimNanos >= TRIM_INTERVAL_NANOS) {
+				lastTrimNanos = now;
+				buckets.values().removeIf(arrival -> arrival.get() - now <= 0);
+			}
+		} finally {
+			trimLock.unlock();
+		}
+	}
+}
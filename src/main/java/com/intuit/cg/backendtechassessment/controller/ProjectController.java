@@ -2,6 +2,8 @@ package com.intuit.cg.backendtechassessment.controller;
 
 import java.util.Collection;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -10,19 +12,31 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.google.gson.Gson;
+import com.intuit.cg.backendtechassessment.admission.BidAdmissionControl;
 import com.intuit.cg.backendtechassessment.controller.requestmappings.RequestMappings;
 import com.intuit.cg.backendtechassessment.configuration.Marketplace;
-import com.intuit.cg.backendtechassessment.exceptions.NoBidFoundException;
+import com.intuit.cg.backendtechassessment.exceptions.InvalidAutobidRuleException;
+import com.intuit.cg.backendtechassessment.exceptions.InvalidBidAmountException;
+import com.intuit.cg.backendtechassessment.persistence.IdempotencyStore;
 import com.intuit.cg.backendtechassessment.persistence.MarketplaceDAO;
+import com.intuit.cg.backendtechassessment.dataobjects.AdmissionStats;
+import com.intuit.cg.backendtechassessment.dataobjects.AnalyticsSnapshot;
+import com.intuit.cg.backendtechassessment.dataobjects.AutobidRule;
+import com.intuit.cg.backendtechassessment.dataobjects.AutobidRules;
 import com.intuit.cg.backendtechassessment.dataobjects.Bid;
 import com.intuit.cg.backendtechassessment.dataobjects.Buyer;
+import com.intuit.cg.backendtechassessment.dataobjects.BuyerStats;
+import com.intuit.cg.backendtechassessment.dataobjects.MarketplaceStats;
 import com.intuit.cg.backendtechassessment.dataobjects.Project;
 import com.intuit.cg.backendtechassessment.dataobjects.Projects;
+import com.intuit.cg.backendtechassessment.dataobjects.SellerStats;
 
 /**
  * This class defines the ReST controller for this marketplace project. Most of the
@@ -30,8 +44,9 @@ import com.intuit.cg.backendtechassessment.dataobjects.Projects;
  * significant data manipulation and storage jobs to the data access object.
  *
  * There are some significant shortcomings that did not get addressed:
- * 1. The project max amount is not respected - that is, winning bids just have to be the
- *    lowest, but they will still win even if they are over the project's max amount
+ * 1. The project max amount is only respected by autobids - that is, other winning bids
+ *    just have to be the lowest, but they will still win even if they are over the
+ *    project's max amount
  * 2. While the times are stored and tracked, they are not factored into any of the
  *    current calculations - this controller would need a few more endpoints to help
  *    manage time and enforce time restrictions
@@ -41,8 +56,13 @@ import com.intuit.cg.backendtechassessment.dataobjects.Projects;
 @RestController
 public class ProjectController {
 
+	private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+	private static final String IDEMPOTENT_REPLAY = "Idempotent-Replayed";
+
 	private Gson gson = new Gson();
 	private MarketplaceDAO dao = Marketplace.getInitializedMarketplaceDAO();
+	private BidAdmissionControl admission = new BidAdmissionControl();
+	private IdempotencyStore idempotencyStore = new IdempotencyStore();
 	
 	public ProjectController() {
 	}
@@ -58,75 +78,316 @@ public class ProjectController {
 
 	/**
 	 * Handles the /projects/create end point. Accepts the JSON definition of a Project.
+	 * Projects without a projectId get a new one. Retries from the same seller that send
+	 * the same Idempotency-Key header get the original response. A project whose projectId
+	 * is taken is answered with 409 Conflict - existing projects are never overwritten.
 	 */
 	@RequestMapping(value="/" + RequestMappings.PROJECTS + "/create",
 			method=RequestMethod.POST, consumes=MediaType.APPLICATION_JSON_UTF8_VALUE,
 			produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
-	public ResponseEntity<String> createProject(@RequestBody Project project) {
-		dao.addProject(project);
-		// missing error checking
-		return new ResponseEntity<String>("{result:'success'}", HttpStatus.OK);
+	public ResponseEntity<String> createProject(@RequestBody Project project,
+			@RequestHeader(value=IDEMPOTENCY_KEY, required=false) String idempotencyKey) {
+		return runIdempotent(RequestMappings.PROJECTS + "/" + project.getSellerId(), idempotencyKey, project,
+				project::getProjectId, projectId -> "{result:'success'}", () -> {
+			if (project.getProjectId() == null) {
+				project.setProjectId(UUID.randomUUID());
+			}
+			if (dao.putProjectIfAbsent(project) != null) {
+				return new ResponseEntity<String>("{result:'project id already exists'}", HttpStatus.CONFLICT);
+			}
+			return new ResponseEntity<String>("{result:'success'}", HttpStatus.OK);
+		});
 	}
 
 	/**
 	 * Handles the /projects/getById/{id} end point. Accepts the string UUID value and
 	 * returns the JSON definition of a Project. The project returned includes the
-	 * JSON definition of the buyer that submitted the lowest bid.
+	 * JSON definition of the buyer that submitted the lowest bid. The DAO keeps the
+	 * lowest bid up to date as bids come in, so no bids are looked at here.
+	 *
+	 * The ETag is the project's version. If it matches If-None-Match, 304 Not Modified
+	 * is returned without a body.
 	 */
 	@RequestMapping(value="/" + RequestMappings.PROJECTS + "/getById/{id}",
 			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
-	public ResponseEntity<Project> getProjectById(@PathVariable("id") String id) {
+	public ResponseEntity<Project> getProjectById(@PathVariable("id") String id,
+			@RequestHeader(value=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
 		Project project = dao.getProjectById(UUID.fromString(id));
-		project.setSelectedBid(null);
-		project.setSelectedBuyer(null);
-		try {
-			Bid bid = dao.findLowestBid(project);
-			project.setSelectedBid(bid);
-			project.setSelectedBuyer(dao.getBuyerById(bid.getBuyerId()));
-		} catch (NoBidFoundException nbfe) {
-			// do nothing
+		if (project == null) {
+			return new ResponseEntity<Project>(HttpStatus.NOT_FOUND);
 		}
-		if (project != null) {
-			return new ResponseEntity<Project>(project, HttpStatus.OK);
+		String eTag = toETag(project.getVersion());
+		if (isETagMatch(ifNoneMatch, eTag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
 		}
-		return new ResponseEntity(HttpStatus.NOT_FOUND);
+		return ResponseEntity.ok().eTag(eTag).body(project);
 	}
 
 	/**
 	 * Returns the JSON representation of all projects when invoking the
-	 * /projects/getAll end point.
+	 * /projects/getAll end point. With ?sinceVersion=n only the projects that changed
+	 * after catalogue version n are returned. Either way the response carries the current
+	 * catalogue version, to be used as sinceVersion for the next call.
+	 *
+	 * The ETag is the catalogue version. If it matches If-None-Match, 304 Not Modified
+	 * is returned without a body.
 	 */
 	@RequestMapping(value="/" + RequestMappings.PROJECTS + "/getAll",
 			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
-	public ResponseEntity<Projects> getAllProjects() {
-		Collection<Project> projects = dao.getAllProjects();
+	public ResponseEntity<Projects> getAllProjects(
+			@RequestParam(value="sinceVersion", required=false) Long sinceVersion,
+			@RequestHeader(value=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
+		// read the version before the projects - every change up to it is already in the
+		// delta index, and any later one gets a higher version, so the next delta gets it
+		long version = dao.getCatalogueVersion();
+		String eTag = toETag(version);
+		if (isETagMatch(ifNoneMatch, eTag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+		}
+		Collection<Project> projects = (sinceVersion == null) ?
+				dao.getAllProjects() : dao.getProjectsChangedSince(sinceVersion);
 		Projects projectList = new Projects();
 		projectList.setProjects(projects);
+		projectList.setVersion(version);
 		// missing error checking
-		return new ResponseEntity<Projects>(projectList, HttpStatus.OK);
+		return ResponseEntity.ok().eTag(eTag).body(projectList);
+	}
+
+	/**
+	 * Handles the /projects/close/{id} end point. Closes the auction for the project - its
+	 * current lowest bid wins.
+	 */
+	@RequestMapping(value="/" + RequestMappings.PROJECTS + "/close/{id}",
+			method=RequestMethod.POST, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> closeProject(@PathVariable("id") String id) {
+		if (dao.closeProject(UUID.fromString(id)) == null) {
+			return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<String>("{result:'success'}", HttpStatus.OK);
 	}
 
 	/**
-	 * Handles the /bids/create end point. Accepts the JSON definition of a Bid.
+	 * Handles the /bids/create end point. Accepts the JSON definition of a Bid. Bids that
+	 * do not get past the admission control are answered with 429 Too Many Requests and
+	 * the reason, and are never handed to the data access object. Bids from unknown buyers
+	 * or on unknown projects are rejected with 400 Bad Request before that. Bids without a
+	 * bidId get a new one, and the bidId is returned. Retries from the same buyer that send
+	 * the same Idempotency-Key header get the original response. A bid whose bidId is
+	 * taken is answered as a replay if it is identical to the existing bid, and with 409
+	 * Conflict otherwise - existing bids are never overwritten.
 	 */
 	@RequestMapping(value="/" + RequestMappings.BIDS + "/create",
 			method=RequestMethod.POST, consumes=MediaType.APPLICATION_JSON_UTF8_VALUE,
 			produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
-	public ResponseEntity<String> createBid(@RequestBody Bid bid) {
-		dao.addBid(bid);
-		// missing error checking
-		return new ResponseEntity<String>("{result:'success'}", HttpStatus.OK);
+	public ResponseEntity<String> createBid(@RequestBody Bid bid,
+			@RequestHeader(value=IDEMPOTENCY_KEY, required=false) String idempotencyKey) {
+		return runIdempotent(RequestMappings.BIDS + "/" + bid.getBuyerId(), idempotencyKey, bid,
+				bid::getBidId, ProjectController::toBidCreated, () -> submitBid(bid));
+	}
+
+	private ResponseEntity<String> submitBid(Bid bid) {
+		if (bid.getBidId() == null) {
+			bid.setBidId(UUID.randomUUID());
+		}
+		if (dao.getBuyerById(bid.getBuyerId()) == null) {
+			return new ResponseEntity<String>("{result:'unknown buyer'}", HttpStatus.BAD_REQUEST);
+		}
+		if (bid.getProjectId() == null || dao.getProjectById(bid.getProjectId()) == null) {
+			return new ResponseEntity<String>("{result:'unknown project'}", HttpStatus.BAD_REQUEST);
+		}
+		BidAdmissionControl.Decision decision = admission.tryAdmit(bid.getBuyerId(), bid.getProjectId());
+		if (decision != BidAdmissionControl.Decision.ADMITTED) {
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.RETRY_AFTER, "1");
+			return new ResponseEntity<String>("{result:'" + decision.name().toLowerCase() + "'}",
+					headers, HttpStatus.TOO_MANY_REQUESTS);
+		}
+		long start = System.nanoTime();
+		Bid existing;
+		try {
+			existing = dao.putBidIfAbsent(bid);
+		} finally {
+			admission.release(start);
+		}
+		String body = toBidCreated(bid.getBidId());
+		if (existing == null) {
+			return new ResponseEntity<String>(body, HttpStatus.OK);
+		}
+		if (!existing.equals(bid)) {
+			return new ResponseEntity<String>("{result:'bid id already exists'}", HttpStatus.CONFLICT);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(IDEMPOTENT_REPLAY, "true");
+		return new ResponseEntity<String>(body, headers, HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /admission/stats end point. Returns the current bid admission limits
+	 * and how many bids have been admitted and rejected.
+	 */
+	@RequestMapping(value="/" + RequestMappings.ADMISSION + "/stats",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<AdmissionStats> getAdmissionStats() {
+		return new ResponseEntity<AdmissionStats>(admission.getStats(), HttpStatus.OK);
 	}
 
 	/**
-	 * Handles the /buyers/create end point. Accepts the JSON definition of a Buyer.
+	 * Handles the /buyers/create end point. Accepts the JSON definition of a Buyer. Buyers
+	 * without a buyerId get a new one.
 	 */
 	@RequestMapping(value="/" + RequestMappings.BUYERS + "/create",
 			method=RequestMethod.POST, consumes=MediaType.APPLICATION_JSON_UTF8_VALUE,
 			produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
 	public ResponseEntity<String> createBuyer(@RequestBody Buyer buyer) {
+		if (buyer.getBuyerId() == null) {
+			buyer.setBuyerId(UUID.randomUUID());
+		}
 		dao.addBuyer(buyer);
 		// missing error checking
 		return new ResponseEntity<String>("{result:'success'}", HttpStatus.OK);
 	}
+
+	/**
+	 * Handles the /buyers/autobidRules/create end point. Accepts the JSON definition of an
+	 * AutobidRule. Every project added from now on that matches the rule gets a bid from
+	 * the rule's buyer. New rules are posted without a ruleId and get one, which is
+	 * returned. Posting a rule with the ruleId of one of the buyer's rules replaces that
+	 * rule. Rules for unknown buyers, for rules the buyer does not own, or with invalid
+	 * criteria or bid amounts are rejected with 400 Bad Request.
+	 */
+	@RequestMapping(value="/" + RequestMappings.BUYERS + "/autobidRules/create",
+			method=RequestMethod.POST, consumes=MediaType.APPLICATION_JSON_UTF8_VALUE,
+			produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> createAutobidRule(@RequestBody AutobidRule rule) {
+		try {
+			dao.addAutobidRule(rule);
+		} catch (InvalidAutobidRuleException iare) {
+			return new ResponseEntity<String>("{result:'invalid autobid rule'}", HttpStatus.BAD_REQUEST);
+		} catch (InvalidBidAmountException ibae) {
+			return new ResponseEntity<String>("{result:'invalid bid amount'}", HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<String>("{result:'success',ruleId:'" + rule.getRuleId() + "'}", HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /buyers/autobidRules/getByBuyerId/{id} end point. Returns the JSON
+	 * definition of all autobid rules of the buyer.
+	 */
+	@RequestMapping(value="/" + RequestMappings.BUYERS + "/autobidRules/getByBuyerId/{id}",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<AutobidRules> getAutobidRulesByBuyerId(@PathVariable("id") String id) {
+		AutobidRules rules = new AutobidRules();
+		rules.setAutobidRules(dao.getAutobidRulesForBuyerId(UUID.fromString(id)));
+		return new ResponseEntity<AutobidRules>(rules, HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /analytics/buyers/{id} end point. Returns how many bids the buyer has
+	 * placed, how many projects they won, and their average winning discount.
+	 */
+	@RequestMapping(value="/" + RequestMappings.ANALYTICS + "/buyers/{id}",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<BuyerStats> getBuyerStats(@PathVariable("id") String id) {
+		return new ResponseEntity<BuyerStats>(dao.getAnalytics().getBuyerStats(UUID.fromString(id)), HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /analytics/sellers/{id} end point. Returns how many projects the seller
+	 * listed, closed and sold, the bids they received, and the average winning discount.
+	 */
+	@RequestMapping(value="/" + RequestMappings.ANALYTICS + "/sellers/{id}",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<SellerStats> getSellerStats(@PathVariable("id") String id) {
+		return new ResponseEntity<SellerStats>(dao.getAnalytics().getSellerStats(UUID.fromString(id)), HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /analytics/global end point. Returns the statistics for the whole
+	 * marketplace.
+	 */
+	@RequestMapping(value="/" + RequestMappings.ANALYTICS + "/global",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<MarketplaceStats> getMarketplaceStats() {
+		return new ResponseEntity<MarketplaceStats>(dao.getAnalytics().getMarketplaceStats(), HttpStatus.OK);
+	}
+
+	/**
+	 * Handles the /analytics/snapshot end point. Returns the periodically refreshed
+	 * snapshot of all buyer, seller and marketplace statistics.
+	 */
+	@RequestMapping(value="/" + RequestMappings.ANALYTICS + "/snapshot",
+			method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<AnalyticsSnapshot> getAnalyticsSnapshot() {
+		return new ResponseEntity<AnalyticsSnapshot>(dao.getAnalytics().getSnapshot(), HttpStatus.OK);
+	}
+
+	/**
+	 * Runs the request unless a request with the same idempotency key (within the scope)
+	 * has been seen before, in which case the original response is returned. Only
+	 * successful responses are remembered - failed requests can be retried. The store only
+	 * keeps the status and the id of the created object (read through resultId once the
+	 * request ran), and successBody turns that id back into the response body. A retry
+	 * that arrives while the original request is still running gets 409 Conflict, and a
+	 * key reused with a different requestBody gets 422 Unprocessable Entity.
+	 */
+	private ResponseEntity<String> runIdempotent(String scope, String idempotencyKey, Object requestBody,
+			Supplier<UUID> resultId, Function<UUID, String> successBody, Supplier<ResponseEntity<String>> request) {
+		if (idempotencyKey == null) {
+			return request.get();
+		}
+		// fingerprint the request before running it fills in any missing ids
+		String fingerprint = gson.toJson(requestBody);
+		IdempotencyStore.StoredResponse original = idempotencyStore.reserve(scope, idempotencyKey, fingerprint);
+		if (original != null) {
+			if (!original.isFor(fingerprint)) {
+				return new ResponseEntity<String>("{result:'idempotency key reused'}", HttpStatus.UNPROCESSABLE_ENTITY);
+			}
+			if (!original.isComplete()) {
+				return new ResponseEntity<String>("{result:'in progress'}", HttpStatus.CONFLICT);
+			}
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(IDEMPOTENT_REPLAY, "true");
+			return new ResponseEntity<String>(successBody.apply(original.getResultId()), headers,
+					HttpStatus.valueOf(original.getStatus()));
+		}
+		ResponseEntity<String> response = null;
+		try {
+			response = request.get();
+		} finally {
+			if (response != null && response.getStatusCode().is2xxSuccessful()) {
+				idempotencyStore.complete(scope, idempotencyKey, response.getStatusCodeValue(), resultId.get());
+			} else {
+				idempotencyStore.release(scope, idempotencyKey);
+			}
+		}
+		return response;
+	}
+
+	private static String toBidCreated(UUID bidId) {
+		return "{result:'success',bidId:'" + bidId + "'}";
+	}
+
+	private static String toETag(long version) {
+		return "\"" + version + "\"";
+	}
+
+	/**
+	 * Checks an If-None-Match header value (which may list several tags, or be *)
+	 * against the current ETag.
+	 */
+	private static boolean isETagMatch(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
@@ -5,6 +5,8 @@ public class RequestMappings {
     public static final String SELLERS = "/sellers";
     public static final String BUYERS = "/buyers";
     public static final String BIDS = "/bids";
+    public static final String ADMISSION = "/admission";
+    public static final String ANALYTICS = "/analytics";
 
     private RequestMappings() {
     }
@@ -0,0 +1,18 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import lombok.Data;
+
+/**
+ * Point in time view of the bid admission control: how many bids were let through, how
+ * many were turned away and why, and the current state of the limits.
+ */
+public @Data class AdmissionStats {
+	private long admitted;
+	private long buyerRateLimited;
+	private long projectRateLimited;
+	private long overloaded;
+	private int concurrencyLimit;
+	private int inFlight;
+	private int trackedBuyers;
+	private int trackedProjects;
+}
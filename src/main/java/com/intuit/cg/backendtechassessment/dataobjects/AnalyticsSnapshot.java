@@ -0,0 +1,15 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import java.util.Collection;
+import lombok.Data;
+
+/**
+ * All marketplace statistics as of takenAt (in milliseconds since epoch). Only buyers
+ * and sellers with any activity are included.
+ */
+public @Data class AnalyticsSnapshot {
+	private long takenAt;
+	private MarketplaceStats marketplace;
+	private Collection<BuyerStats> buyers;
+	private Collection<SellerStats> sellers;
+}
@@ -0,0 +1,28 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import java.util.Set;
+import java.util.UUID;
+import lombok.Data;
+
+/**
+ * Defines one autobid rule for a buyer. Whenever a new project matches all of the rule's
+ * criteria, a bid for bidAmount is made on behalf of the buyer. A project only ever
+ * matches if its maxBudget is at least the bidAmount. Criteria that are not set match
+ * every project:
+ * - minBudget / maxBudget: range the project's maxBudget has to fall in (0 means no limit)
+ * - earliestEndDate / latestEndDate: window the project's end date has to fall in, in
+ *   milliseconds since epoch (0 means no limit)
+ * - sellerIds: the project has to belong to one of these sellers
+ * - keywords: one of these words has to appear in the project's title or description
+ */
+public @Data class AutobidRule {
+	private UUID ruleId;
+	private UUID buyerId;
+	private double bidAmount;
+	private double minBudget;
+	private double maxBudget;
+	private long earliestEndDate;
+	private long latestEndDate;
+	private Set<UUID> sellerIds;
+	private Set<String> keywords;
+}
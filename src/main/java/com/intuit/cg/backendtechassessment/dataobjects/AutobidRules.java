@@ -0,0 +1,11 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import java.util.Collection;
+import lombok.Data;
+
+/**
+ * Defines a collection of autobid rules.
+ */
+public @Data class AutobidRules {
+	private Collection<AutobidRule> autobidRules;
+}
@@ -5,7 +5,9 @@ import lombok.Data;
 
 /**
  * Defines a single buyer. The buyerId is unique (UUID). If the autobidAmount is set,
- * then the system should automatically include a bid for this buyer for all projects.
+ * then the system should automatically include a bid for this buyer for all projects
+ * whose maxBudget is at least the autobidAmount. AutobidRules allow more selective
+ * autobidding.
  */
 public @Data class Buyer {
 	private String name;
@@ -0,0 +1,15 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import java.util.UUID;
+import lombok.Data;
+
+/**
+ * Aggregate statistics for a single buyer. The winning discount is how far below the
+ * project's maxBudget a winning bid was, as a fraction of the maxBudget.
+ */
+public @Data class BuyerStats {
+	private UUID buyerId;
+	private long bidsPlaced;
+	private long projectsWon;
+	private double averageWinningDiscount;
+}
@@ -0,0 +1,14 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import lombok.Data;
+
+/**
+ * Aggregate statistics for the whole marketplace.
+ */
+public @Data class MarketplaceStats {
+	private long bids;
+	private long projects;
+	private long projectsClosed;
+	private long projectsSold;
+	private double averageWinningDiscount;
+}
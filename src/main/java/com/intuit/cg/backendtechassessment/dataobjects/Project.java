@@ -5,7 +5,8 @@ import lombok.Data;
 
 /**
  * Defines a single project. The winning bid is always min(List<Bid>) when current date
- * is greater than projectEndDate. The project links to the seller by id.
+ * is greater than projectEndDate. The project links to the seller by id. The version
+ * goes up every time the selected bid changes or the project is closed.
  */
 public @Data class Project {
 	private String title;
@@ -16,4 +17,6 @@ public @Data class Project {
 	private UUID sellerId;
 	private Bid selectedBid;
 	private Buyer selectedBuyer;	// could be empty if no buyer has bid on the project
+	private long version;
+	private boolean closed;
 }
\ No newline at end of file
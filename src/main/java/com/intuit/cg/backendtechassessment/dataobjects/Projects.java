@@ -4,8 +4,9 @@ import java.util.Collection;
 import lombok.Data;
 
 /**
- * Defines a collection of projects.
+ * Defines a collection of projects, along with the catalogue version they were read at.
  */
 public @Data class Projects {
 	private Collection<Project> projects;
+	private long version;
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.intuit.cg.backendtechassessment.dataobjects;
+
+import java.util.UUID;
+import lombok.Data;
+
+/**
+ * Aggregate statistics for a single seller. A project is sold when it was closed with a
+ * winning bid. The winning discount is how far below the project's maxBudget the winning
+ * bid was, as a fraction of the maxBudget.
+ */
+public @Data class SellerStats {
+	private UUID sellerId;
+	private long projectsListed;
+	private long bidsReceived;
+	private long projectsClosed;
+	private long projectsSold;
+	private double averageWinningDiscount;
+}
@@ -0,0 +1,10 @@
+package com.intuit.cg.backendtechassessment.exceptions;
+
+/**
+ * Thrown whenever an autobid rule is incomplete or refers to an unknown buyer or rule.
+ */
+public class InvalidAutobidRuleException extends Exception {
+	public InvalidAutobidRuleException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,217 @@
+package com.intuit.cg.backendtechassessment.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import com.intuit.cg.backendtechassessment.dataobjects.AutobidRule;
+import com.intuit.cg.backendtechassessment.dataobjects.Project;
+import com.intuit.cg.backendtechassessment.utils.IntervalTree;
+
+/**
+ * Finds the autobid rules that match a project without looking at every rule.
+ *
+ * Every rule covers an interval of project maxBudgets: from the larger of its minBudget
+ * and its bidAmount (a bid over the project's maxBudget can never win, so it is never
+ * made) up to its own maxBudget.
+ *
+ * The rules are kept in IntervalTrees on that interval. Rules with keywords go into one
+ * tree per keyword, so a project only looks in the trees for words that appear in its
+ * title or description, and checks seller and end date on the rules that come back.
+ * Rules without keywords are split by seller - one tree per seller for rules naming that
+ * seller, plus one for rules that take any seller - so a project only looks in two trees
+ * and checks the end date on the rules that come back. Either way a rule whose budget
+ * interval does not contain the project's maxBudget is never looked at.
+ *
+ * Not thread safe - the MarketplaceDAO guards it.
+ */
+public class AutobidIndex {
+	private HashMap<UUID, Entry> entryMap = new HashMap<UUID, Entry>(5);	// keyed by ruleId
+	private HashMap<String, IntervalTree<Entry>> keywordTreeMap = new HashMap<String, IntervalTree<Entry>>(5);
+	private HashMap<UUID, IntervalTree<Entry>> sellerTreeMap = new HashMap<UUID, IntervalTree<Entry>>(5);
+	private IntervalTree<Entry> anySellerTree = new IntervalTree<Entry>();
+	private long nextKey;
+
+	/**
+	 * An indexed rule, with the parts of it that get checked on every match worked out
+	 * ahead of time.
+	 */
+	private static class Entry {
+		private final AutobidRule rule;
+		private final long key;
+		private final double lowBudget;
+		private final double highBudget;
+		private final Set<UUID> sellerIds;
+		private final Set<String> keywords;
+
+		private Entry(AutobidRule rule, long key) {
+			this.rule = rule;
+			this.key = key;
+			this.lowBudget = Math.max(rule.getMinBudget(), rule.getBidAmount());
+			this.highBudget = (rule.getMaxBudget() > 0.0) ? rule.getMaxBudget() : Double.POSITIVE_INFINITY;
+			this.sellerIds = new HashSet<UUID>();
+			if (rule.getSellerIds() != null) {
+				sellerIds.addAll(rule.getSellerIds());
+			}
+			this.keywords = new HashSet<String>();
+			if (rule.getKeywords() != null) {
+				for (String keyword : rule.getKeywords()) {
+					keywords.add(keyword.toLowerCase());
+				}
+			}
+		}
+
+		private boolean canMatch() {
+			return lowBudget <= highBudget;
+		}
+
+		private boolean matchesSeller(UUID sellerId) {
+			return sellerIds.isEmpty() || sellerIds.contains(sellerId);
+		}
+
+		private boolean matchesEndDate(long endDate) {
+			return (rule.getEarliestEndDate() <= 0 || endDate >= rule.getEarliestEndDate()) &&
+					(rule.getLatestEndDate() <= 0 || endDate <= rule.getLatestEndDate());
+		}
+	}
+
+	public AutobidIndex() {
+	}
+
+	/**
+	 * Adds the rule, replacing any rule with the same ruleId
+	 */
+	public void addRule(AutobidRule rule) {
+		removeRule(rule.getRuleId());
+		Entry entry = new Entry(rule, nextKey++);
+		entryMap.put(rule.getRuleId(), entry);
+		if (!entry.canMatch()) {
+			// can never match a project - keep it, but leave it out of the index
+			return;
+		}
+		for (String keyword : entry.keywords) {
+			addToTree(keywordTreeMap, keyword, entry);
+		}
+		if (!entry.keywords.isEmpty()) {
+			return;
+		}
+		if (entry.sellerIds.isEmpty()) {
+			anySellerTree.add(entry.lowBudget, entry.highBudget, entry.key, entry);
+		}
+		for (UUID sellerId : entry.sellerIds) {
+			addToTree(sellerTreeMap, sellerId, entry);
+		}
+	}
+
+	/**
+	 * Removes the rule with the given ruleId, if there is one
+	 */
+	public void removeRule(UUID ruleId) {
+		Entry entry = entryMap.remove(ruleId);
+		if (entry == null || !entry.canMatch()) {
+			return;
+		}
+		for (String keyword : entry.keywords) {
+			removeFromTree(keywordTreeMap, keyword, entry);
+		}
+		if (!entry.keywords.isEmpty()) {
+			return;
+		}
+		if (entry.sellerIds.isEmpty()) {
+			anySellerTree.remove(entry.lowBudget, entry.key);
+		}
+		for (UUID sellerId : entry.sellerIds) {
+			removeFromTree(sellerTreeMap, sellerId, entry);
+		}
+	}
+
+	/**
+	 * Returns the rule with the given ruleId, or null if there is none
+	 */
+	public AutobidRule getRule(UUID ruleId) {
+		Entry entry = entryMap.get(ruleId);
+		return (entry == null) ? null : entry.rule;
+	}
+
+	/**
+	 * Returns all of the rules made by the buyer with the given buyerId
+	 */
+	public List<AutobidRule> getRulesForBuyerId(UUID buyerId) {
+		ArrayList<AutobidRule> rules = new ArrayList<AutobidRule>(0);
+		for (Entry entry : entryMap.values()) {
+			if (buyerId.equals(entry.rule.getBuyerId())) {
+				rules.add(entry.rule);
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Returns every rule that matches the given project
+	 */
+	public List<AutobidRule> findMatchingRules(Project project) {
+		ArrayList<Entry> candidates = new ArrayList<Entry>();
+		anySellerTree.findContaining(project.getMaxBudget(), candidates);
+		IntervalTree<Entry> sellerTree = sellerTreeMap.get(project.getSellerId());
+		if (sellerTree != null) {
+			sellerTree.findContaining(project.getMaxBudget(), candidates);
+		}
+
+		ArrayList<AutobidRule> matches = new ArrayList<AutobidRule>(candidates.size());
+		for (Entry entry : candidates) {
+			if (entry.matchesEndDate(project.getProjectEndDate())) {
+				matches.add(entry.rule);
+			}
+		}
+
+		if (!keywordTreeMap.isEmpty()) {
+			candidates.clear();
+			for (String word : wordsOf(project)) {
+				IntervalTree<Entry> keywordTree = keywordTreeMap.get(word);
+				if (keywordTree != null) {
+					keywordTree.findContaining(project.getMaxBudget(), candidates);
+				}
+			}
+			// a rule with several keywords can be reached through more than one word
+			HashSet<Entry> seen = new HashSet<Entry>();
+			for (Entry entry : candidates) {
+				if (entry.matchesSeller(project.getSellerId()) &&
+						entry.matchesEndDate(project.getProjectEndDate()) &&
+						(entry.keywords.size() == 1 || seen.add(entry))) {
+					matches.add(entry.rule);
+				}
+			}
+		}
+		return matches;
+	}
+
+	private static <K> void addToTree(HashMap<K, IntervalTree<Entry>> treeMap, K treeKey, Entry entry) {
+		IntervalTree<Entry> tree = treeMap.get(treeKey);
+		if (tree == null) {
+			tree = new IntervalTree<Entry>();
+			treeMap.put(treeKey, tree);
+		}
+		tree.add(entry.lowBudget, entry.highBudget, entry.key, entry);
+	}
+
+	private static <K> void removeFromTree(HashMap<K, IntervalTree<Entry>> treeMap, K treeKey, Entry entry) {
+		IntervalTree<Entry> tree = treeMap.get(treeKey);
+		if (tree != null && tree.remove(entry.lowBudget, entry.key) && tree.size() == 0) {
+			treeMap.remove(treeKey);
+		}
+	}
+
+	private static Set<String> wordsOf(Project project) {
+		HashSet<String> words = new HashSet<String>();
+		for (String text : new String[] { project.getTitle(), project.getDescription() }) {
+			if (text != null) {
+				for (String word : text.toLowerCase().split("\\W+")) {
+					words.add(word);
+				}
+			}
+		}
+		return words;
+	}
+}
@@ -0,0 +1,250 @@
+package com.intuit.cg.backendtechassessment.persistence;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.intuit.cg.backendtechassessment.utils.BloomFilter;
+
+/**
+ * Remembers the idempotency keys clients sent with their requests, a fingerprint of each
+ * request, and the outcome it got, so a retried request can be answered with the original
+ * outcome instead of being carried out twice - and a key reused for a different request
+ * can be told apart from a retry.
+ *
+ * Keys are remembered for at least windowMillis. Rather than tracking the age of every
+ * key, the store keeps a few generations, each a ConcurrentHashMap with a Bloom filter in
+ * front of it. New keys go into the newest generation, and once it has covered its share
+ * of the window a fresh generation is started and the oldest one is dropped as a whole.
+ * The Bloom filters let a new key - by far the most common case - skip the map lookups in
+ * the older generations.
+ *
+ * Memory is bounded: every generation holds at most its share of maxKeysPerWindow keys,
+ * and its Bloom filter is sized for exactly that. A remembered key is a fixed size entry
+ * of a few longs (its 128 bit hash, the request fingerprint, the status and the id of the
+ * created object) - about 120 bytes with the map overhead. Once the newest generation is
+ * full, further new keys are not remembered until the next generation starts: their
+ * requests are still carried out, but a retry of one of them is carried out again. Bids
+ * stay safe even then as long as the client picks the bidId, because a bidId is never
+ * used twice.
+ *
+ * A key that is looked up while its generation is being retired can slip through once.
+ */
+public class IdempotencyStore {
+	private static final long DEFAULT_WINDOW_MILLIS = 3600000;	// one hour
+	private static final int DEFAULT_GENERATIONS = 4;
+	private static final int DEFAULT_MAX_KEYS_PER_WINDOW = 1000000;
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final long generationMillis;
+	private final int maxKeysPerGeneration;
+	private volatile Generation[] generations;	// newest first
+
+	/**
+	 * The outcome a request got: its status and the id of the object it created, if any.
+	 * A response with status 0 belongs to a request that has not finished yet.
+	 */
+	public static final class StoredResponse {
+		private final long fingerprint;
+		private final int status;
+		private final long resultIdHigh;
+		private final long resultIdLow;
+		private final boolean hasResultId;
+
+		private StoredResponse(long fingerprint, int status, UUID resultId) {
+			this.fingerprint = fingerprint;
+			this.status = status;
+			this.hasResultId = (resultId != null);
+			this.resultIdHigh = hasResultId ? resultId.getMostSignificantBits() : 0;
+			this.resultIdLow = hasResultId ? resultId.getLeastSignificantBits() : 0;
+		}
+
+		public boolean isComplete() {
+			return status != 0;
+		}
+
+		/**
+		 * Returns true if the response belongs to the given request, false if the key was
+		 * first used for a different one
+		 */
+		public boolean isFor(String request) {
+			return fingerprint == fingerprintOf(request);
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public UUID getResultId() {
+			return hasResultId ? new UUID(resultIdHigh, resultIdLow) : null;
+		}
+	}
+
+	private static final class Key {
+		private final long hash1;
+		private final long hash2;
+
+		private Key(long hash1, long hash2) {
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key)other;
+			return hash1 == key.hash1 && hash2 == key.hash2;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(hash1 ^ (hash1 >>> 32));
+		}
+	}
+
+	private static final class Generation {
+		private final long startMillis;
+		private final ConcurrentHashMap<Key, StoredResponse> responseMap;
+		private final AtomicInteger keyCount = new AtomicInteger();
+		private final BloomFilter filter;
+
+		private Generation(long startMillis, int maxKeys) {
+			this.startMillis = startMillis;
+			this.responseMap = new ConcurrentHashMap<Key, StoredResponse>(16);
+			this.filter = new BloomFilter(maxKeys, FALSE_POSITIVE_RATE);
+		}
+	}
+
+	public IdempotencyStore() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_GENERATIONS, DEFAULT_MAX_KEYS_PER_WINDOW);
+	}
+
+	public IdempotencyStore(long windowMillis, int generationCount, int maxKeysPerWindow) {
+		if (generationCount < 2) {
+			throw new IllegalArgumentException("At least two generations are needed");
+		}
+		this.generationMillis = windowMillis / (generationCount - 1);
+		this.maxKeysPerGeneration = Math.max(1, maxKeysPerWindow / (generationCount - 1));
+		this.generations = new Generation[generationCount];
+		this.generations[0] = new Generation(System.currentTimeMillis(), maxKeysPerGeneration);
+	}
+
+	/**
+	 * Claims the idempotency key within the given scope (e.g. the end point and the
+	 * client) for the given request (e.g. its body). Returns null if the key is new, in
+	 * which case the caller must finish with complete() or release(). Otherwise returns
+	 * the response stored for the key, which is not complete if the original request is
+	 * still being worked on, and may belong to a different request.
+	 */
+	public StoredResponse reserve(String scope, String idempotencyKey, String request) {
+		Key key = toKey(scope, idempotencyKey);
+		Generation[] current = rotateIfNeeded();
+		for (Generation generation : current) {
+			if (generation != null && generation.filter.mightContain(key.hash1, key.hash2)) {
+				StoredResponse response = generation.responseMap.get(key);
+				if (response != null) {
+					return response;
+				}
+			}
+		}
+		Generation newest = current[0];
+		if (newest.keyCount.incrementAndGet() > maxKeysPerGeneration) {
+			// full - the request goes ahead without its key being remembered
+			newest.keyCount.decrementAndGet();
+			return null;
+		}
+		// into the filter first, so nobody can miss a key that is already in the map
+		newest.filter.add(key.hash1, key.hash2);
+		StoredResponse existing = newest.responseMap.putIfAbsent(key,
+				new StoredResponse(fingerprintOf(request), 0, null));
+		if (existing != null) {
+			newest.keyCount.decrementAndGet();
+		}
+		return existing;
+	}
+
+	/**
+	 * Stores the outcome for a key claimed with reserve(). resultId is the id of the
+	 * object the request created, or null.
+	 */
+	public void complete(String scope, String idempotencyKey, int status, UUID resultId) {
+		Key key = toKey(scope, idempotencyKey);
+		for (Generation generation : generations) {
+			StoredResponse pending = (generation == null) ? null : generation.responseMap.get(key);
+			if (pending != null && !pending.isComplete()) {
+				generation.responseMap.replace(key, pending, new StoredResponse(pending.fingerprint, status, resultId));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets a key claimed with reserve(), so that the request can be retried
+	 */
+	public void release(String scope, String idempotencyKey) {
+		Key key = toKey(scope, idempotencyKey);
+		for (Generation generation : generations) {
+			StoredResponse pending = (generation == null) ? null : generation.responseMap.get(key);
+			if (pending != null && !pending.isComplete()) {
+				if (generation.responseMap.remove(key, pending)) {
+					generation.keyCount.decrementAndGet();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts a new generation if the newest one has covered its time span. Returns the
+	 * generations to use.
+	 */
+	private Generation[] rotateIfNeeded() {
+		Generation[] current = generations;
+		long now = System.currentTimeMillis();
+		if (now - current[0].startMillis < generationMillis) {
+			return current;
+		}
+		synchronized (this) {
+			current = generations;
+			if (now - current[0].startMillis >= generationMillis) {
+				Generation[] rotated = new Generation[current.length];
+				rotated[0] = new Generation(now, maxKeysPerGeneration);
+				System.arraycopy(current, 0, rotated, 1, current.length - 1);
+				generations = rotated;
+				current = rotated;
+			}
+		}
+		return current;
+	}
+
+	private static Key toKey(String scope, String idempotencyKey) {
+		return new Key(hash(scope, idempotencyKey, 0xcbf29ce484222325L, 0x100000001b3L),
+				hash(scope, idempotencyKey, 0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L));
+	}
+
+	private static long fingerprintOf(String request) {
+		return hash("", (request == null) ? "" : request, 0x9e3779b97f4a7c15L, 0x100000001b3L);
+	}
+
+	/**
+	 * Multiplicative string hash followed by the MurmurHash3 finalizer. The two hashes of
+	 * a key use different seeds and multipliers.
+	 */
+	private static long hash(String scope, String idempotencyKey, long seed, long multiplier) {
+		long hash = seed;
+		for (int i = 0; i < scope.length(); i++) {
+			hash = (hash ^ scope.charAt(i)) * multiplier;
+		}
+		hash = (hash ^ 0xffff) * multiplier;	// separates scope from key
+		for (int i = 0; i < idempotencyKey.length(); i++) {
+			hash = (hash ^ idempotencyKey.charAt(i)) * multiplier;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,203 @@
+package com.intuit.cg.backendtechassessment.persistence;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import com.intuit.cg.backendtechassessment.dataobjects.AnalyticsSnapshot;
+import com.intuit.cg.backendtechassessment.dataobjects.Bid;
+import com.intuit.cg.backendtechassessment.dataobjects.BuyerStats;
+import com.intuit.cg.backendtechassessment.dataobjects.MarketplaceStats;
+import com.intuit.cg.backendtechassessment.dataobjects.Project;
+import com.intuit.cg.backendtechassessment.dataobjects.SellerStats;
+
+/**
+ * Running per-buyer, per-seller and marketplace-wide statistics. The MarketplaceDAO
+ * reports every new bid, new project and closed auction here, and each report only
+ * bumps a handful of counters, so the statistics never have to be worked out by walking
+ * the bids and projects. Reading the statistics for one buyer or seller is constant time.
+ *
+ * A full snapshot of everything is also available. Building it walks every buyer and
+ * seller, so it is only rebuilt once every SNAPSHOT_INTERVAL_MILLIS.
+ */
+public class MarketplaceAnalytics {
+	private static final long SNAPSHOT_INTERVAL_MILLIS = 60000;
+
+	private ConcurrentHashMap<UUID, Counters> buyerCounters = new ConcurrentHashMap<UUID, Counters>(16);
+	private ConcurrentHashMap<UUID, Counters> sellerCounters = new ConcurrentHashMap<UUID, Counters>(16);
+	private ConcurrentHashMap<UUID, LongAdder> unassignedBids = new ConcurrentHashMap<UUID, LongAdder>(16);	// keyed by projectId
+	private Counters marketplaceCounters = new Counters();
+	private volatile AnalyticsSnapshot snapshot;
+
+	/**
+	 * The counters kept for each buyer and seller, and for the marketplace as a whole.
+	 * Not every counter is meaningful for every kind of owner.
+	 */
+	private static class Counters {
+		private final LongAdder bids = new LongAdder();
+		private final LongAdder projects = new LongAdder();
+		private final LongAdder closed = new LongAdder();
+		private final LongAdder won = new LongAdder();
+		private final DoubleAdder winningDiscount = new DoubleAdder();
+
+		private double averageWinningDiscount() {
+			long wins = won.sum();
+			return (wins == 0) ? 0.0 : winningDiscount.sum() / wins;
+		}
+	}
+
+	public MarketplaceAnalytics() {
+	}
+
+	/**
+	 * Records a new bid. The project may be null if it is not known (yet) - the bid is
+	 * then credited to the seller once the project is added.
+	 */
+	public void bidAdded(Bid bid, Project project) {
+		marketplaceCounters.bids.increment();
+		countersFor(buyerCounters, bid.getBuyerId()).bids.increment();
+		if (project != null) {
+			countersFor(sellerCounters, project.getSellerId()).bids.increment();
+		} else if (bid.getProjectId() != null) {
+			unassignedBids.computeIfAbsent(bid.getProjectId(), k -> new LongAdder()).increment();
+		}
+	}
+
+	/**
+	 * Takes back a bid recorded with bidAdded(), because it has been replaced. The project
+	 * is the one that was passed to bidAdded(), or the project added since.
+	 */
+	public void bidRemoved(Bid bid, Project project) {
+		marketplaceCounters.bids.decrement();
+		countersFor(buyerCounters, bid.getBuyerId()).bids.decrement();
+		if (project != null) {
+			countersFor(sellerCounters, project.getSellerId()).bids.decrement();
+		} else if (bid.getProjectId() != null) {
+			LongAdder pending = unassignedBids.get(bid.getProjectId());
+			if (pending != null) {
+				pending.decrement();
+			}
+		}
+	}
+
+	/**
+	 * Records a new project, crediting its seller with any bids made before it was added.
+	 */
+	public void projectAdded(Project project) {
+		Counters seller = countersFor(sellerCounters, project.getSellerId());
+		marketplaceCounters.projects.increment();
+		seller.projects.increment();
+		LongAdder pending = unassignedBids.remove(project.getProjectId());
+		if (pending != null) {
+			seller.bids.add(pending.sum());
+		}
+	}
+
+	/**
+	 * Records a closed auction. The winning bid is null if nobody bid on the project.
+	 */
+	public void projectClosed(Project project, Bid winningBid) {
+		Counters seller = countersFor(sellerCounters, project.getSellerId());
+		marketplaceCounters.closed.increment();
+		seller.closed.increment();
+		if (winningBid != null) {
+			double discount = (project.getMaxBudget() > 0.0) ?
+					(project.getMaxBudget() - winningBid.getBidAmount()) / project.getMaxBudget() : 0.0;
+			Counters buyer = countersFor(buyerCounters, winningBid.getBuyerId());
+			for (Counters counters : new Counters[] { marketplaceCounters, seller, buyer }) {
+				counters.won.increment();
+				counters.winningDiscount.add(discount);
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics for the buyer with the given buyerId
+	 */
+	public BuyerStats getBuyerStats(UUID buyerId) {
+		return toBuyerStats(buyerId, buyerCounters.getOrDefault(buyerId, new Counters()));
+	}
+
+	/**
+	 * Returns the statistics for the seller with the given sellerId
+	 */
+	public SellerStats getSellerStats(UUID sellerId) {
+		return toSellerStats(sellerId, sellerCounters.getOrDefault(sellerId, new Counters()));
+	}
+
+	/**
+	 * Returns the statistics for the whole marketplace
+	 */
+	public MarketplaceStats getMarketplaceStats() {
+		MarketplaceStats stats = new MarketplaceStats();
+		stats.setBids(marketplaceCounters.bids.sum());
+		stats.setProjects(marketplaceCounters.projects.sum());
+		stats.setProjectsClosed(marketplaceCounters.closed.sum());
+		stats.setProjectsSold(marketplaceCounters.won.sum());
+		stats.setAverageWinningDiscount(marketplaceCounters.averageWinningDiscount());
+		return stats;
+	}
+
+	/**
+	 * Returns a snapshot of all statistics that is at most SNAPSHOT_INTERVAL_MILLIS old.
+	 */
+	public AnalyticsSnapshot getSnapshot() {
+		AnalyticsSnapshot current = snapshot;
+		long now = System.currentTimeMillis();
+		if (current == null || now - current.getTakenAt() >= SNAPSHOT_INTERVAL_MILLIS) {
+			current = takeSnapshot(now);
+			snapshot = current;
+		}
+		return current;
+	}
+
+	private AnalyticsSnapshot takeSnapshot(long now) {
+		ArrayList<BuyerStats> buyers = new ArrayList<BuyerStats>(buyerCounters.size());
+		for (Map.Entry<UUID, Counters> entry : buyerCounters.entrySet()) {
+			buyers.add(toBuyerStats(entry.getKey(), entry.getValue()));
+		}
+		ArrayList<SellerStats> sellers = new ArrayList<SellerStats>(sellerCounters.size());
+		for (Map.Entry<UUID, Counters> entry : sellerCounters.entrySet()) {
+			sellers.add(toSellerStats(entry.getKey(), entry.getValue()));
+		}
+		AnalyticsSnapshot newSnapshot = new AnalyticsSnapshot();
+		newSnapshot.setTakenAt(now);
+		newSnapshot.setMarketplace(getMarketplaceStats());
+		newSnapshot.setBuyers(buyers);
+		newSnapshot.setSellers(sellers);
+		return newSnapshot;
+	}
+
+	private static BuyerStats toBuyerStats(UUID buyerId, Counters counters) {
+		BuyerStats stats = new BuyerStats();
+		stats.setBuyerId(buyerId);
+		stats.setBidsPlaced(counters.bids.sum());
+		stats.setProjectsWon(counters.won.sum());
+		stats.setAverageWinningDiscount(counters.averageWinningDiscount());
+		return stats;
+	}
+
+	private static SellerStats toSellerStats(UUID sellerId, Counters counters) {
+		SellerStats stats = new SellerStats();
+		stats.setSellerId(sellerId);
+		stats.setProjectsListed(counters.projects.sum());
+		stats.setBidsReceived(counters.bids.sum());
+		stats.setProjectsClosed(counters.closed.sum());
+		stats.setProjectsSold(counters.won.sum());
+		stats.setAverageWinningDiscount(counters.averageWinningDiscount());
+		return stats;
+	}
+
+	/**
+	 * Returns the counters for the given id, creating them if needed. A null id (an
+	 * incomplete bid or project) gets throwaway counters.
+	 */
+	private static Counters countersFor(ConcurrentHashMap<UUID, Counters> countersMap, UUID id) {
+		if (id == null) {
+			return new Counters();
+		}
+		return countersMap.computeIfAbsent(id, k -> new Counters());
+	}
+}
@@ -7,10 +7,14 @@ import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import com.intuit.cg.backendtechassessment.dataobjects.AutobidRule;
 import com.intuit.cg.backendtechassessment.dataobjects.Bid;
 import com.intuit.cg.backendtechassessment.dataobjects.Buyer;
 import com.intuit.cg.backendtechassessment.dataobjects.Project;
 import com.intuit.cg.backendtechassessment.dataobjects.Seller;
+import com.intuit.cg.backendtechassessment.exceptions.InvalidAutobidRuleException;
 import com.intuit.cg.backendtechassessment.exceptions.InvalidBidAmountException;
 import com.intuit.cg.backendtechassessment.exceptions.NoBidFoundException;
 import com.intuit.cg.backendtechassessment.utils.CurrencyFormatter;
@@ -20,13 +24,26 @@ import com.intuit.cg.backendtechassessment.utils.CurrencyFormatter;
  * persisted marketplace data. This object stores and returns all marketplace data items
  * that have been initialized. I chose to use in-memory, volatile data storage. It
  * was easier than having a database dependency.
+ *
+ * Every change to what a project looks like from the outside (a new lowest bid, closing
+ * the auction) stamps the project with the next value of a global catalogue version, so
+ * a project's version only ever goes up and clients can cheaply tell whether anything
+ * changed since they last looked. A catalogue version is only published once the project
+ * carrying it can be found by getProjectsChangedSince(), so a client that reads the
+ * version first and the projects second never misses a change on its next delta.
  */
 public class MarketplaceDAO {
 
 	private HashMap<UUID, Bid> bidMap = new HashMap<UUID, Bid>(5);
-	private HashMap<UUID, Buyer> buyerMap = new HashMap<UUID, Buyer>(5);
-	private HashMap<UUID, Project> projectMap = new HashMap<UUID, Project>(5);
+	private ConcurrentHashMap<UUID, Buyer> buyerMap = new ConcurrentHashMap<UUID, Buyer>(5);	// read without the lock
+	private ConcurrentHashMap<UUID, Project> projectMap = new ConcurrentHashMap<UUID, Project>(5);	// read without the lock
 	private HashMap<UUID, Seller> sellerMap = new HashMap<UUID, Seller>(5);
+	private ConcurrentHashMap<UUID, Bid> lowestBidMap = new ConcurrentHashMap<UUID, Bid>(5);	// keyed by projectId
+	private ConcurrentSkipListMap<Long, UUID> versionMap = new ConcurrentSkipListMap<Long, UUID>();
+	private long catalogueVersion;	// guarded by this
+	private volatile long publishedVersion;
+	private MarketplaceAnalytics analytics = new MarketplaceAnalytics();
+	private AutobidIndex autobidIndex = new AutobidIndex();
 
 	public MarketplaceDAO() {
 	}
@@ -46,14 +63,37 @@ public class MarketplaceDAO {
 		bid.setBidAmount(bidAmount);
 		bid.setBidId(bidId);
 		bid.setProjectId(projectId);
-		bidMap.put(bidId, bid);
+		addBid(bid);
 	}
 	
 	/**
-	 * Creates a bid from a complete Bid object.
+	 * Creates a bid from a complete Bid object. If the bid is the new lowest bid for an
+	 * open project, the project is updated to point to it and gets a new version.
 	 */
-	public void addBid(Bid bid) {
-		bidMap.put(bid.getBidId(), bid);
+	public synchronized void addBid(Bid bid) {
+		Bid previous = bidMap.put(bid.getBidId(), bid);
+		if (previous != null) {
+			analytics.bidRemoved(previous, getProjectById(previous.getProjectId()));
+		}
+		analytics.bidAdded(bid, getProjectById(bid.getProjectId()));
+		if (previous != null && previous.getProjectId() != null &&
+				previous == lowestBidMap.get(previous.getProjectId())) {
+			// the lowest bid was just replaced - it may not be the lowest anymore
+			recalculateLowestBid(previous.getProjectId());
+		}
+		offerLowestBid(bid);
+	}
+	
+	/**
+	 * Creates a bid from a complete Bid object, unless a bid with the same bidId already
+	 * exists. Returns the existing bid in that case (and changes nothing), otherwise null.
+	 */
+	public synchronized Bid putBidIfAbsent(Bid bid) {
+		Bid existing = bidMap.get(bid.getBidId());
+		if (existing == null) {
+			addBid(bid);
+		}
+		return existing;
 	}
 	
 	/**
@@ -92,21 +132,75 @@ public class MarketplaceDAO {
 	}
 	
 	/**
-	 * Whenever a new Project is created, this method is called and walks through all
-	 * buyers - for each buyer that has autobidSet to true, creates a bid for that Project
-	 * on behalf of that buyer.
+	 * Whenever a new Project is created, this method is called and looks up the autobid
+	 * rules that match the Project - for each buyer with a matching rule, creates a bid
+	 * for that Project on behalf of that buyer. If several of a buyer's rules match, only
+	 * the lowest bid is made.
 	 */
 	private void createAutobids(Project project) {
-		Collection<Buyer> buyers = buyerMap.values();
-		for(Buyer buyer : buyers) {
-			if (buyer.isAutobidSet()) {
-				try {
-					addBid(buyer.getAutobidAmount(), buyer.getBuyerId(), project.getProjectId());
-				} catch (InvalidBidAmountException ibae) {
-					// Autobid does not work if your bid amount is invalid (i.e. less than $0.00
+		HashMap<UUID, Double> autobidMap = new HashMap<UUID, Double>(5);	// keyed by buyerId
+		for (AutobidRule rule : autobidIndex.findMatchingRules(project)) {
+			Double amount = autobidMap.get(rule.getBuyerId());
+			if (amount == null || rule.getBidAmount() < amount) {
+				autobidMap.put(rule.getBuyerId(), rule.getBidAmount());
+			}
+		}
+		for (UUID buyerId : autobidMap.keySet()) {
+			try {
+				addBid(autobidMap.get(buyerId), buyerId, project.getProjectId());
+			} catch (InvalidBidAmountException ibae) {
+				// Autobid does not work if your bid amount is invalid (i.e. less than $0.00
+			}
+		}
+	}
+	
+	/**
+	 * Adds an autobid rule. A rule without a ruleId is new and gets one, a rule with a
+	 * ruleId replaces that rule of the same buyer. Throws an InvalidAutobidRuleException if
+	 * the rule is not for a known buyer, names a ruleId that is not one of the buyer's
+	 * rules, or names a null seller or a keyword that is not a single word. Throws an
+	 * InvalidBidAmountException if the rule's bid amount is less than $0.00.
+	 */
+	public synchronized void addAutobidRule(AutobidRule rule)
+			throws InvalidAutobidRuleException, InvalidBidAmountException {
+		if (rule.getBuyerId() == null || !buyerMap.containsKey(rule.getBuyerId())) {
+			throw new InvalidAutobidRuleException("Autobid rule is for unknown buyer: " + rule.getBuyerId());
+		}
+		if (rule.getRuleId() != null) {
+			AutobidRule existing = autobidIndex.getRule(rule.getRuleId());
+			if (existing == null || !rule.getBuyerId().equals(existing.getBuyerId())) {
+				throw new InvalidAutobidRuleException("Buyer " + rule.getBuyerId() +
+						" has no autobid rule " + rule.getRuleId());
+			}
+		}
+		if (rule.getSellerIds() != null && rule.getSellerIds().contains(null)) {
+			throw new InvalidAutobidRuleException("Autobid rule for buyer " + rule.getBuyerId() +
+					" names a null seller");
+		}
+		if (rule.getKeywords() != null) {
+			for (String keyword : rule.getKeywords()) {
+				if (keyword == null || !keyword.matches("\\w+")) {
+					throw new InvalidAutobidRuleException("Autobid rule for buyer " + rule.getBuyerId() +
+							" has invalid keyword: " + keyword);
 				}
 			}
 		}
+		if (rule.getBidAmount() < 0.0) {
+			throw new InvalidBidAmountException("Autobid rule for buyer " + rule.getBuyerId() +
+					" has invalid bid amount of: " +
+					CurrencyFormatter.makePrettyCurrencyString(rule.getBidAmount()));
+		}
+		if (rule.getRuleId() == null) {
+			rule.setRuleId(UUID.randomUUID());
+		}
+		autobidIndex.addRule(rule);
+	}
+	
+	/**
+	 * Returns all of the autobid rules of a particular buyer
+	 */
+	public synchronized List<AutobidRule> getAutobidRulesForBuyerId(UUID buyerId) {
+		return autobidIndex.getRulesForBuyerId(buyerId);
 	}
 	
 	/**
@@ -121,10 +215,23 @@ public class MarketplaceDAO {
 	}
 	
 	/**
-	 * Adds a new buyer given a Buyer object
+	 * Adds a new buyer given a Buyer object. The buyer must have a buyerId. A buyer with
+	 * autobidSet gets an autobid rule (with the buyerId as its ruleId) that bids
+	 * autobidAmount on every project that can afford it.
 	 */
-	public void addBuyer(Buyer buyer) {
+	public synchronized void addBuyer(Buyer buyer) {
+		if (buyer.getBuyerId() == null) {
+			throw new IllegalArgumentException("Buyer " + buyer.getName() + " has no buyerId");
+		}
 		buyerMap.put(buyer.getBuyerId(), buyer);
+		autobidIndex.removeRule(buyer.getBuyerId());
+		if (buyer.isAutobidSet() && buyer.getAutobidAmount() >= 0.0) {
+			AutobidRule rule = new AutobidRule();
+			rule.setRuleId(buyer.getBuyerId());
+			rule.setBuyerId(buyer.getBuyerId());
+			rule.setBidAmount(buyer.getAutobidAmount());
+			autobidIndex.addRule(rule);
+		}
 	}
 	
 	/**
@@ -135,28 +242,92 @@ public class MarketplaceDAO {
 	}
 	
 	/**
-	 * Returns the buyer with the given buyerId
+	 * Returns the buyer with the given buyerId, or null if there is none
 	 */
 	public Buyer getBuyerById(UUID id) {
-		return buyerMap.get(id);
+		return (id == null) ? null : buyerMap.get(id);
 	}
 
 	/**
 	 * Attempts to return the lowest Bid for the given project. Throws a
-	 * NoBidFoundException if no buyer has bid on this project.
+	 * NoBidFoundException if no buyer has bid on this project. Once a project is closed
+	 * this is its winning bid.
 	 */
 	public Bid findLowestBid(Project project) throws NoBidFoundException {
-		List<Bid> bids = getAllBidsForProjectId(project.getProjectId());
-		if (bids.size() == 0) {
+		Bid winningBid = lowestBidMap.get(project.getProjectId());
+		if (winningBid == null) {
 			throw new NoBidFoundException("No bids were found for project with id: " + project.getProjectId());
 		}
-		Bid winningBid = bids.get(0);
-		for (Bid bid : bids) {
-			if (bid.getBidAmount() < winningBid.getBidAmount()) {
+		return winningBid;
+	}
+	
+	/**
+	 * Makes the given bid the project's lowest bid if it beats the current one. Bids on
+	 * closed projects no longer change the outcome.
+	 */
+	private void offerLowestBid(Bid bid) {
+		UUID projectId = bid.getProjectId();
+		if (projectId == null) {
+			return;
+		}
+		Project project = projectMap.get(projectId);
+		if (project != null && project.isClosed()) {
+			return;
+		}
+		Bid lowestBid = lowestBidMap.get(projectId);
+		if (lowestBid == null || bid.getBidAmount() < lowestBid.getBidAmount()) {
+			lowestBidMap.put(projectId, bid);
+			if (project != null) {
+				selectBid(project, bid);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the lowest bid for the project by walking all of its bids. Only needed when
+	 * the current lowest bid has been overwritten.
+	 */
+	private void recalculateLowestBid(UUID projectId) {
+		Project project = projectMap.get(projectId);
+		if (project != null && project.isClosed()) {
+			return;
+		}
+		Bid winningBid = null;
+		for (Bid bid : getAllBidsForProjectId(projectId)) {
+			if (winningBid == null || bid.getBidAmount() < winningBid.getBidAmount()) {
 				winningBid = bid;
 			}
 		}
-		return winningBid;
+		if (winningBid == null) {
+			lowestBidMap.remove(projectId);
+		} else {
+			lowestBidMap.put(projectId, winningBid);
+		}
+		if (project != null) {
+			selectBid(project, winningBid);
+		}
+	}
+	
+	/**
+	 * Points the project at the given bid (and the buyer who made it) and moves the
+	 * project to a new version.
+	 */
+	private void selectBid(Project project, Bid bid) {
+		project.setSelectedBid(bid);
+		project.setSelectedBuyer(bid == null ? null : getBuyerById(bid.getBuyerId()));
+		bumpVersion(project);
+	}
+	
+	/**
+	 * Gives the project the next catalogue version, and publishes that version once the
+	 * project can be found under it.
+	 */
+	private void bumpVersion(Project project) {
+		long version = ++catalogueVersion;
+		versionMap.remove(project.getVersion(), project.getProjectId());
+		project.setVersion(version);
+		versionMap.put(version, project.getProjectId());
+		publishedVersion = version;
 	}
 	
 	/**
@@ -179,7 +350,7 @@ public class MarketplaceDAO {
 
 	/**
 	 * Add a new project to the marketplace with the given information. Whenever new
-	 * projects are added, a check is made to find any buyers that have autobidSet, and
+	 * projects are added, a check is made to find any autobid rules that match, and
 	 * automatically generate a bid for those buyers towards this new Project.
 	 */
 	public void addProject(String title, String description, double maxBudget, long endDate, UUID sellerId) {
@@ -199,12 +370,50 @@ public class MarketplaceDAO {
 	
 	/**
 	 * Adds a new Project with the given Project object.  Whenever new
-	 * projects are added, a check is made to find any buyers that have autobidSet, and
-	 * automatically generate a bid for those buyers towards this new Project.
+	 * projects are added, a check is made to find any autobid rules that match, and
+	 * automatically generate a bid for those buyers towards this new Project. The project
+	 * must have a projectId. A project whose projectId is taken is ignored.
 	 */
 	public void addProject(Project project) {
+		putProjectIfAbsent(project);
+	}
+	
+	/**
+	 * Adds a new Project like addProject(Project), unless a project with the same
+	 * projectId already exists. Returns the existing project in that case (and changes
+	 * nothing), otherwise null. New projects always start out open.
+	 */
+	public synchronized Project putProjectIfAbsent(Project project) {
+		if (project.getProjectId() == null) {
+			throw new IllegalArgumentException("Project " + project.getTitle() + " has no projectId");
+		}
+		Project existing = projectMap.get(project.getProjectId());
+		if (existing != null) {
+			return existing;
+		}
+		project.setVersion(0);
+		project.setClosed(false);
 		projectMap.put(project.getProjectId(), project);
+		analytics.projectAdded(project);
+		// bids may have been made before the project itself was added
+		selectBid(project, lowestBidMap.get(project.getProjectId()));
 		createAutobids(project);
+		return null;
+	}
+	
+	/**
+	 * Closes the auction for the project with the given projectId. The lowest bid at this
+	 * point becomes the winning bid, and later bids no longer change the project. Returns
+	 * the closed Project, or null if there is no such project.
+	 */
+	public synchronized Project closeProject(UUID projectId) {
+		Project project = projectMap.get(projectId);
+		if (project != null && !project.isClosed()) {
+			project.setClosed(true);
+			bumpVersion(project);
+			analytics.projectClosed(project, lowestBidMap.get(projectId));
+		}
+		return project;
 	}
 	
 	/**
@@ -215,10 +424,41 @@ public class MarketplaceDAO {
 	}
 	
 	/**
-	 * Returns the Project with the given projectId.
+	 * Returns the Project with the given projectId, or null if there is none
 	 */
 	public Project getProjectById(UUID id) {
-		return projectMap.get(id);
+		return (id == null) ? null : projectMap.get(id);
+	}
+	
+	/**
+	 * Returns all projects whose version is greater than the given version, i.e. every
+	 * project that changed after the catalogue was at that version.
+	 */
+	public Collection<Project> getProjectsChangedSince(long version) {
+		Collection<UUID> projectIds = versionMap.tailMap(version, false).values();
+		ArrayList<Project> projects = new ArrayList<Project>(projectIds.size());
+		for (UUID projectId : projectIds) {
+			Project project = projectMap.get(projectId);
+			if (project != null) {
+				projects.add(project);
+			}
+		}
+		return projects;
+	}
+	
+	/**
+	 * Returns the running buyer, seller and marketplace statistics
+	 */
+	public MarketplaceAnalytics getAnalytics() {
+		return analytics;
+	}
+	
+	/**
+	 * Returns the current catalogue version. It goes up whenever any project changes, and
+	 * every change up to it can already be found by getProjectsChangedSince().
+	 */
+	public long getCatalogueVersion() {
+		return publishedVersion;
 	}
 
 	//////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,59 @@
+package com.intuit.cg.backendtechassessment.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, thread safe Bloom filter over items that have already been hashed to two
+ * 64 bit values. mightContain() never returns false for an item that was added, and
+ * returns true for an item that was not added with roughly the false positive rate the
+ * filter was sized for - as long as no more than expectedItems are added.
+ *
+ * The bit positions for an item are derived from its two hashes by double hashing
+ * (hash1 + i * hash2), so the caller only has to hash each item once.
+ */
+public class BloomFilter {
+	private final AtomicLongArray words;
+	private final long bitCount;
+	private final int hashCount;
+
+	public BloomFilter(int expectedItems, double falsePositiveRate) {
+		double ln2 = Math.log(2.0);
+		long bits = (long)Math.ceil(-expectedItems * Math.log(falsePositiveRate) / (ln2 * ln2));
+		int wordCount = (int)Math.max(1L, (bits + 63) / 64);
+		this.words = new AtomicLongArray(wordCount);
+		this.bitCount = wordCount * 64L;
+		this.hashCount = Math.max(1, (int)Math.round(bits / (double)expectedItems * ln2));
+	}
+
+	/**
+	 * Adds the item with the given hashes
+	 */
+	public void add(long hash1, long hash2) {
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			int index = (int)(bit >>> 6);
+			long mask = 1L << bit;
+			long word = words.get(index);
+			while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+				word = words.get(index);
+			}
+			combined += hash2;
+		}
+	}
+
+	/**
+	 * Returns false if the item with the given hashes was definitely never added
+	 */
+	public boolean mightContain(long hash1, long hash2) {
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			if ((words.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+			combined += hash2;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,180 @@
+package com.intuit.cg.backendtechassessment.utils;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Holds values tagged with a closed interval [low, high] and finds all values whose
+ * interval contains a given point in O(log n + k) time, k being the number of matches.
+ *
+ * It is a treap (a binary search tree kept balanced by random priorities) ordered by the
+ * low end of the intervals, where every node also knows the highest high end in its
+ * subtree so whole subtrees that end before the point can be skipped. Each entry has a
+ * caller-supplied key that must be unique within the tree - it breaks ties between equal
+ * low ends and identifies the entry on removal.
+ *
+ * Not thread safe.
+ */
+public class IntervalTree<T> {
+	private final Random random = new Random();
+	private Node<T> root;
+	private int size;
+
+	private static class Node<T> {
+		private final double low;
+		private final double high;
+		private final long key;
+		private final int priority;
+		private final T value;
+		private double maxHigh;
+		private Node<T> left;
+		private Node<T> right;
+
+		private Node(double low, double high, long key, int priority, T value) {
+			this.low = low;
+			this.high = high;
+			this.key = key;
+			this.priority = priority;
+			this.value = value;
+			this.maxHigh = high;
+		}
+	}
+
+	public IntervalTree() {
+	}
+
+	/**
+	 * Adds the value with the interval [low, high] under the given key
+	 */
+	public void add(double low, double high, long key, T value) {
+		root = insert(root, new Node<T>(low, high, key, random.nextInt(), value));
+		size++;
+	}
+
+	/**
+	 * Removes the entry with the given low end and key. Returns false if there is none.
+	 */
+	public boolean remove(double low, long key) {
+		int before = size;
+		root = delete(root, low, key);
+		return size < before;
+	}
+
+	/**
+	 * Adds every value whose interval contains the point to results
+	 */
+	public void findContaining(double point, Collection<? super T> results) {
+		findContaining(root, point, results);
+	}
+
+	/**
+	 * Returns the number of entries in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void findContaining(Node<T> node, double point, Collection<? super T> results) {
+		if (node == null || node.maxHigh < point) {
+			return;
+		}
+		findContaining(node.left, point, results);
+		// everything to the right starts even later than this node
+		if (node.low <= point) {
+			if (node.high >= point) {
+				results.add(node.value);
+			}
+			findContaining(node.right, point, results);
+		}
+	}
+
+	private Node<T> insert(Node<T> node, Node<T> newNode) {
+		if (node == null) {
+			return newNode;
+		}
+		if (compare(newNode.low, newNode.key, node) < 0) {
+			node.left = insert(node.left, newNode);
+			if (node.left.priority > node.priority) {
+				node = rotateRight(node);
+			}
+		} else {
+			node.right = insert(node.right, newNode);
+			if (node.right.priority > node.priority) {
+				node = rotateLeft(node);
+			}
+		}
+		updateMaxHigh(node);
+		return node;
+	}
+
+	private Node<T> delete(Node<T> node, double low, long key) {
+		if (node == null) {
+			return null;
+		}
+		int comparison = compare(low, key, node);
+		if (comparison < 0) {
+			node.left = delete(node.left, low, key);
+		} else if (comparison > 0) {
+			node.right = delete(node.right, low, key);
+		} else {
+			size--;
+			return merge(node.left, node.right);
+		}
+		updateMaxHigh(node);
+		return node;
+	}
+
+	/**
+	 * Joins two treaps where every entry of left sorts before every entry of right
+	 */
+	private Node<T> merge(Node<T> left, Node<T> right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		if (left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			updateMaxHigh(left);
+			return left;
+		}
+		right.left = merge(left, right.left);
+		updateMaxHigh(right);
+		return right;
+	}
+
+	private Node<T> rotateRight(Node<T> node) {
+		Node<T> pivot = node.left;
+		node.left = pivot.right;
+		pivot.right = node;
+		updateMaxHigh(node);
+		updateMaxHigh(pivot);
+		return pivot;
+	}
+
+	private Node<T> rotateLeft(Node<T> node) {
+		Node<T> pivot = node.right;
+		node.right = pivot.left;
+		pivot.left = node;
+		updateMaxHigh(node);
+		updateMaxHigh(pivot);
+		return pivot;
+	}
+
+	private static <T> void updateMaxHigh(Node<T> node) {
+		double maxHigh = node.high;
+		if (node.left != null && node.left.maxHigh > maxHigh) {
+			maxHigh = node.left.maxHigh;
+		}
+		if (node.right != null && node.right.maxHigh > maxHigh) {
+			maxHigh = node.right.maxHigh;
+		}
+		node.maxHigh = maxHigh;
+	}
+
+	private static <T> int compare(double low, long key, Node<T> node) {
+		int comparison = Double.compare(low, node.low);
+		return (comparison != 0) ? comparison : Long.compare(key, node.key);
+	}
+}
@@ -1,6 +1,9 @@
 package com.intuit.cg.backendtechassessment;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 import org.junit.Assert;
 import org.junit.Test;
@@ -10,9 +13,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import com.intuit.cg.backendtechassessment.dataobjects.AdmissionStats;
+import com.intuit.cg.backendtechassessment.dataobjects.AutobidRule;
 import com.intuit.cg.backendtechassessment.dataobjects.Bid;
+import com.intuit.cg.backendtechassessment.dataobjects.BuyerStats;
 import com.intuit.cg.backendtechassessment.controller.ProjectController;
 import com.intuit.cg.backendtechassessment.dataobjects.Project;
+import com.intuit.cg.backendtechassessment.dataobjects.Projects;
+import com.intuit.cg.backendtechassessment.dataobjects.SellerStats;
 import com.google.gson.Gson;
 import com.intuit.cg.backendtechassessment.persistence.MarketplaceDAO;
 import com.intuit.cg.backendtechassessment.configuration.Marketplace;
@@ -54,7 +62,8 @@ public class BackendTechAssessmentApplicationTests {
 	}
 
 	/**
-	 * Test the requirement to create a project
+	 * Test the requirement to create a project, and that an existing project cannot be
+	 * overwritten
 	 */
 	@Test
 	public void createProject() throws Exception {
@@ -69,6 +78,12 @@ public class BackendTechAssessmentApplicationTests {
 
 		this.mvc.perform(post("/projects/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(project)))
 				.andExpect(status().isOk()).andExpect(content().string("{result:'success'}"));
+
+		// closing the project must stick - posting it again must not reopen it
+		dao.closeProject(projectId);
+		this.mvc.perform(post("/projects/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(project)))
+				.andExpect(status().isConflict());
+		Assert.assertTrue(dao.getProjectById(projectId).isClosed());
 	}
 
 	/**
@@ -107,7 +122,16 @@ public class BackendTechAssessmentApplicationTests {
 		bid.setBidId(bidId);
 		
 		this.mvc.perform(post("/bids/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
-				.andExpect(status().isOk()).andExpect(content().string("{result:'success'}"));
+				.andExpect(status().isOk()).andExpect(content().string("{result:'success',bidId:'" + bidId + "'}"));
+
+		// the same bidId from another buyer must not overwrite the bid
+		Buyer otherBuyer = new Buyer();
+		otherBuyer.setName("Other Buyer");
+		otherBuyer.setBuyerId(UUID.randomUUID());
+		dao.addBuyer(otherBuyer);
+		bid.setBuyerId(otherBuyer.getBuyerId());
+		this.mvc.perform(post("/bids/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isConflict());
 	}
 
 	/**
@@ -147,4 +171,353 @@ public class BackendTechAssessmentApplicationTests {
 		Assert.assertTrue(bid.getProjectId().compareTo(projectId) == 0);
 		Assert.assertTrue(bid.getBidAmount() == autobidAmount);
 	}
+
+	/**
+	 * Test that a single buyer flooding the bid end point gets rate limited, that the
+	 * rejection shows up in the admission stats, and that made up buyers and projects are
+	 * turned away before the limits
+	 */
+	@Test
+	public void rateLimitBids() throws Exception {
+		// use a buyer and project nobody else bids with, so other tests are not limited
+		Buyer buyer = new Buyer();
+		buyer.setName("Flooding Buyer");
+		buyer.setBuyerId(UUID.randomUUID());
+		dao.addBuyer(buyer);
+		Project project = new Project();
+		project.setTitle("floodedProject");
+		project.setProjectId(UUID.randomUUID());
+		project.setDescription("rate limit test description");
+		project.setMaxBudget(25.0);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(UUID.randomUUID());
+		dao.addProject(project);
+
+		Bid bid = new Bid();
+		bid.setBuyerId(UUID.randomUUID());
+		bid.setBidAmount(10.0);
+		bid.setProjectId(project.getProjectId());
+		this.mvc.perform(post("/bids/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isBadRequest()).andExpect(content().string("{result:'unknown buyer'}"));
+		bid.setBuyerId(buyer.getBuyerId());
+		bid.setProjectId(UUID.randomUUID());
+		this.mvc.perform(post("/bids/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isBadRequest()).andExpect(content().string("{result:'unknown project'}"));
+		bid.setProjectId(project.getProjectId());
+
+		int status = 200;
+		for (int i = 0; i < 1000 && status == 200; i++) {
+			bid.setBidId(UUID.randomUUID());
+			status = this.mvc.perform(post("/bids/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+					.andReturn().getResponse().getStatus();
+		}
+		Assert.assertEquals(429, status);
+
+		String json = this.mvc.perform(get("/admission/stats"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		AdmissionStats stats = gson.fromJson(json, AdmissionStats.class);
+		Assert.assertTrue(stats.getBuyerRateLimited() > 0);
+		Assert.assertTrue(stats.getAdmitted() > 0);
+	}
+
+	/**
+	 * Test that a project posted without a projectId gets one, and that a new project
+	 * always starts out open
+	 */
+	@Test
+	public void createProjectWithoutId() throws Exception {
+		UUID sellerId = UUID.randomUUID();
+		Project project = new Project();
+		project.setTitle("unidentifiedProject");
+		project.setDescription("a test description");
+		project.setMaxBudget(25.0);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(sellerId);
+		project.setClosed(true);
+
+		this.mvc.perform(post("/projects/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(project)))
+				.andExpect(status().isOk()).andExpect(content().string("{result:'success'}"));
+
+		Project created = null;
+		for (Project candidate : dao.getAllProjects()) {
+			if (sellerId.equals(candidate.getSellerId())) {
+				created = candidate;
+			}
+		}
+		Assert.assertNotNull(created.getProjectId());
+		Assert.assertFalse(created.isClosed());
+	}
+
+	/**
+	 * Test that project polling is answered with 304 until a better bid changes the
+	 * project, and that the delta mode of getAll only returns the changed project
+	 */
+	@Test
+	public void conditionalProjectRequests() throws Exception {
+		UUID projectId = UUID.randomUUID();
+		Project project = new Project();
+		project.setTitle("versionedProject");
+		project.setProjectId(projectId);
+		project.setDescription("conditional get test description");
+		project.setMaxBudget(100.0);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(dao.getRandomSellerId());
+		dao.addProject(project);
+
+		String url = "/projects/getById/" + projectId.toString();
+		String eTag = this.mvc.perform(get(url))
+				.andExpect(status().isOk()).andReturn().getResponse().getHeader("ETag");
+		this.mvc.perform(get(url).header("If-None-Match", eTag))
+				.andExpect(status().isNotModified());
+
+		long catalogueVersion = dao.getCatalogueVersion();
+		dao.addBid(12.5, dao.getRandomBuyerId(), projectId);
+		String newETag = this.mvc.perform(get(url).header("If-None-Match", eTag))
+				.andExpect(status().isOk()).andReturn().getResponse().getHeader("ETag");
+		Assert.assertNotEquals(eTag, newETag);
+
+		String json = this.mvc.perform(get("/projects/getAll?sinceVersion=" + catalogueVersion))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		Projects changed = gson.fromJson(json, Projects.class);
+		Assert.assertEquals(1, changed.getProjects().size());
+		Assert.assertEquals(projectId, changed.getProjects().iterator().next().getProjectId());
+		Assert.assertEquals(dao.getCatalogueVersion(), changed.getVersion());
+	}
+
+	/**
+	 * Test that buyer and seller statistics follow bids and closed auctions
+	 */
+	@Test
+	public void marketplaceAnalytics() throws Exception {
+		UUID buyerId = UUID.randomUUID();
+		UUID sellerId = UUID.randomUUID();
+		UUID projectId = UUID.randomUUID();
+		Project project = new Project();
+		project.setTitle("analyticsProject");
+		project.setProjectId(projectId);
+		project.setDescription("analytics test description");
+		project.setMaxBudget(100.0);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(sellerId);
+		// one bid before the project is added, and one that gets replaced by another buyer
+		dao.addBid(90.0, UUID.randomUUID(), projectId);
+		dao.addProject(project);
+		Bid replacedBid = new Bid();
+		replacedBid.setBidId(UUID.randomUUID());
+		replacedBid.setBuyerId(buyerId);
+		replacedBid.setBidAmount(95.0);
+		replacedBid.setProjectId(projectId);
+		dao.addBid(replacedBid);
+		Bid replacingBid = new Bid();
+		replacingBid.setBidId(replacedBid.getBidId());
+		replacingBid.setBuyerId(UUID.randomUUID());
+		replacingBid.setBidAmount(95.0);
+		replacingBid.setProjectId(projectId);
+		dao.addBid(replacingBid);
+		dao.addBid(80.0, buyerId, projectId);
+
+		this.mvc.perform(post("/projects/close/" + projectId.toString()))
+				.andExpect(status().isOk());
+
+		String json = this.mvc.perform(get("/analytics/buyers/" + buyerId.toString()))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		BuyerStats buyerStats = gson.fromJson(json, BuyerStats.class);
+		Assert.assertEquals(1, buyerStats.getBidsPlaced());
+		Assert.assertEquals(1, buyerStats.getProjectsWon());
+
+		json = this.mvc.perform(get("/analytics/sellers/" + sellerId.toString()))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		SellerStats sellerStats = gson.fromJson(json, SellerStats.class);
+		Assert.assertEquals(1, sellerStats.getProjectsListed());
+		Assert.assertTrue(sellerStats.getBidsReceived() >= 3);	// autobids may have been placed too
+		Assert.assertEquals(1, sellerStats.getProjectsSold());
+		Assert.assertEquals(0.2, sellerStats.getAverageWinningDiscount(), 0.0001);
+	}
+
+	/**
+	 * Test that an autobid rule only bids on projects that match all of its criteria and
+	 * can afford the bid
+	 */
+	@Test
+	public void performAutobidWithRule() throws Exception {
+		UUID buyerId = UUID.randomUUID();
+		Buyer buyer = new Buyer();
+		buyer.setName("Rule Buyer");
+		buyer.setBuyerId(buyerId);
+		dao.addBuyer(buyer);
+
+		UUID sellerId = UUID.randomUUID();
+		AutobidRule rule = new AutobidRule();
+		rule.setBidAmount(50.0);
+		rule.setSellerIds(Collections.singleton(sellerId));
+		rule.setKeywords(Collections.singleton("plumbing"));
+		// a rule has to belong to a known buyer
+		this.mvc.perform(post("/buyers/autobidRules/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(rule)))
+				.andExpect(status().isBadRequest());
+		rule.setBuyerId(buyerId);
+		String json = this.mvc.perform(post("/buyers/autobidRules/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(rule)))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		List<AutobidRule> rules = dao.getAutobidRulesForBuyerId(buyerId);
+		Assert.assertEquals(1, rules.size());
+		Assert.assertEquals("{result:'success',ruleId:'" + rules.get(0).getRuleId() + "'}", json);
+
+		UUID matchingProjectId = UUID.randomUUID();
+		Project project = new Project();
+		project.setTitle("Plumbing job");
+		project.setProjectId(matchingProjectId);
+		project.setDescription("fix a leak");
+		project.setMaxBudget(100.0);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(sellerId);
+		dao.addProject(project);
+		// too small a budget, the wrong seller, and no keyword
+		dao.addProject("Plumbing job", "fix a leak", 40.0, System.currentTimeMillis() + 3600000, sellerId);
+		dao.addProject("Plumbing job", "fix a leak", 100.0, System.currentTimeMillis() + 3600000, UUID.randomUUID());
+		dao.addProject("Painting job", "paint a wall", 100.0, System.currentTimeMillis() + 3600000, sellerId);
+
+		Collection<Bid> bids = dao.getAllBidsForBuyerId(buyerId);
+		Assert.assertEquals(1, bids.size());
+		Bid bid = bids.iterator().next();
+		Assert.assertEquals(matchingProjectId, bid.getProjectId());
+		Assert.assertTrue(bid.getBidAmount() == 50.0);
+	}
+
+	/**
+	 * Test that rules without keywords bid on every project of their seller whose budget
+	 * is in range, and that a rule that can never afford its bid is kept but never bids
+	 */
+	@Test
+	public void performAutobidWithSellerAndBudgetRules() throws Exception {
+		UUID sellerId = UUID.randomUUID();
+		AutobidRule sellerRule = newAutobidRule(newBuyerId("Seller Rule Buyer"), 30.0, sellerId);
+		AutobidRule budgetRule = newAutobidRule(newBuyerId("Budget Rule Buyer"), 60.0, sellerId);
+		budgetRule.setMinBudget(100.0);
+		budgetRule.setMaxBudget(200.0);
+		AutobidRule hopelessRule = newAutobidRule(newBuyerId("Hopeless Rule Buyer"), 80.0, sellerId);
+		hopelessRule.setMaxBudget(60.0);
+		for (AutobidRule rule : new AutobidRule[] { sellerRule, budgetRule, hopelessRule }) {
+			dao.addAutobidRule(rule);
+		}
+
+		UUID smallProjectId = newProject(50.0, sellerId);
+		UUID mediumProjectId = newProject(150.0, sellerId);
+		UUID largeProjectId = newProject(250.0, sellerId);
+		newProject(150.0, UUID.randomUUID());
+
+		List<Bid> sellerRuleBids = dao.getAllBidsForBuyerId(sellerRule.getBuyerId());
+		Assert.assertEquals(3, sellerRuleBids.size());
+		for (Bid bid : sellerRuleBids) {
+			Assert.assertTrue(Arrays.asList(smallProjectId, mediumProjectId, largeProjectId).contains(bid.getProjectId()));
+		}
+		List<Bid> budgetRuleBids = dao.getAllBidsForBuyerId(budgetRule.getBuyerId());
+		Assert.assertEquals(1, budgetRuleBids.size());
+		Assert.assertEquals(mediumProjectId, budgetRuleBids.get(0).getProjectId());
+		Assert.assertEquals(0, dao.getAllBidsForBuyerId(hopelessRule.getBuyerId()).size());
+		Assert.assertEquals(1, dao.getAutobidRulesForBuyerId(hopelessRule.getBuyerId()).size());
+	}
+
+	/**
+	 * Test that posting a rule with its ruleId replaces it, and that nobody can replace
+	 * another buyer's rule
+	 */
+	@Test
+	public void replaceAutobidRule() throws Exception {
+		// enough rules with overlapping budgets that replacing every other one reshapes the tree
+		UUID sellerId = UUID.randomUUID();
+		AutobidRule[] rules = new AutobidRule[40];
+		for (int i = 0; i < rules.length; i++) {
+			rules[i] = newAutobidRule(newBuyerId("Replacing Buyer " + i), 5.0, sellerId);
+			rules[i].setMinBudget(10.0 * i);
+			rules[i].setMaxBudget(10.0 * i + 50.0);
+			dao.addAutobidRule(rules[i]);
+		}
+		for (int i = 0; i < rules.length; i += 2) {
+			rules[i].setMinBudget(1000.0);
+			rules[i].setMaxBudget(1100.0);
+			dao.addAutobidRule(rules[i]);
+		}
+
+		// only the untouched rules covering 105 - those of buyers 7 and 9 - may bid
+		UUID projectId = newProject(105.0, sellerId);
+		for (int i = 0; i < rules.length; i++) {
+			List<Bid> bids = dao.getAllBidsForBuyerId(rules[i].getBuyerId());
+			Assert.assertEquals((i == 7 || i == 9) ? 1 : 0, bids.size());
+			Assert.assertEquals(1, dao.getAutobidRulesForBuyerId(rules[i].getBuyerId()).size());
+		}
+		Assert.assertEquals(projectId, dao.getAllBidsForBuyerId(rules[7].getBuyerId()).get(0).getProjectId());
+
+		AutobidRule hijack = newAutobidRule(rules[0].getBuyerId(), 1.0, sellerId);
+		hijack.setRuleId(rules[1].getRuleId());
+		this.mvc.perform(post("/buyers/autobidRules/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(hijack)))
+				.andExpect(status().isBadRequest());
+		Assert.assertEquals(rules[1].getBuyerId(), dao.getAutobidRulesForBuyerId(rules[1].getBuyerId()).get(0).getBuyerId());
+		rules[1].setBidAmount(6.0);
+		this.mvc.perform(post("/buyers/autobidRules/create").contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(rules[1])))
+				.andExpect(status().isOk()).andExpect(content().string("{result:'success',ruleId:'" + rules[1].getRuleId() + "'}"));
+		Assert.assertTrue(dao.getAutobidRulesForBuyerId(rules[1].getBuyerId()).get(0).getBidAmount() == 6.0);
+	}
+
+	/**
+	 * Test that a retried bid with the same idempotency key gets the original response
+	 * and does not create a second bid, and that the key cannot be reused for another bid
+	 */
+	@Test
+	public void retryBidWithIdempotencyKey() throws Exception {
+		UUID buyerId = UUID.randomUUID();
+		Buyer buyer = new Buyer();
+		buyer.setName("Retrying Buyer");
+		buyer.setBuyerId(buyerId);
+		dao.addBuyer(buyer);
+		Bid bid = new Bid();
+		bid.setBuyerId(buyerId);
+		bid.setBidAmount(42.0);
+		bid.setProjectId(dao.getRandomProjectId());
+		// no bidId - the server assigns one, so a retry would otherwise create a new bid
+		String idempotencyKey = UUID.randomUUID().toString();
+
+		String original = this.mvc.perform(post("/bids/create").header("Idempotency-Key", idempotencyKey)
+				.contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		this.mvc.perform(post("/bids/create").header("Idempotency-Key", idempotencyKey)
+				.contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isOk()).andExpect(content().string(original))
+				.andExpect(header().string("Idempotent-Replayed", "true"));
+		// the same key with a different bid is a mistake, not a retry
+		bid.setBidAmount(43.0);
+		this.mvc.perform(post("/bids/create").header("Idempotency-Key", idempotencyKey)
+				.contentType(MediaType.APPLICATION_JSON_UTF8_VALUE).content(gson.toJson(bid)))
+				.andExpect(status().isUnprocessableEntity());
+
+		Collection<Bid> bids = dao.getAllBidsForBuyerId(buyerId);
+		Assert.assertEquals(1, bids.size());
+		Assert.assertTrue(original.contains(bids.iterator().next().getBidId().toString()));
+	}
+
+	private UUID newBuyerId(String name) {
+		Buyer buyer = new Buyer();
+		buyer.setName(name);
+		buyer.setBuyerId(UUID.randomUUID());
+		dao.addBuyer(buyer);
+		return buyer.getBuyerId();
+	}
+
+	private static AutobidRule newAutobidRule(UUID buyerId, double bidAmount, UUID sellerId) {
+		AutobidRule rule = new AutobidRule();
+		rule.setBuyerId(buyerId);
+		rule.setBidAmount(bidAmount);
+		rule.setSellerIds(Collections.singleton(sellerId));
+		return rule;
+	}
+
+	private UUID newProject(double maxBudget, UUID sellerId) {
+		Project project = new Project();
+		project.setTitle("ruleProject");
+		project.setProjectId(UUID.randomUUID());
+		project.setDescription("autobid rule test description");
+		project.setMaxBudget(maxBudget);
+		project.setProjectEndDate(System.currentTimeMillis() + 3600000); // one hour from now
+		project.setSellerId(sellerId);
+		dao.addProject(project);
+		return project.getProjectId();
+	}
 }